@@ -4,14 +4,49 @@ package fr.uge.clonewar;
 import fr.uge.clonewar.backend.database.*;
 import fr.uge.clonewar.backend.database.ArtefactTable.ArtefactRow;
 import fr.uge.clonewar.backend.database.CloneTable.CloneRow;
+import fr.uge.clonewar.backend.database.FileSimilarityTable.FileSimilarityRow;
 import fr.uge.clonewar.backend.database.FileTable.FileRow;
 import fr.uge.clonewar.backend.database.InstructionTable.InstructionRow;
+import fr.uge.clonewar.backend.model.Job;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 public class CloneDetectors {
+  private static final int CLONE_BATCH_SIZE = 64;
+  private static final int MAX_PENDING_PER_THREAD = 2;
+  private static final int MIN_SKETCHED_FILE_HASHES = 32;
+  // comparisons running in the process, claimed by database so that unrelated databases do not share pair ids
+  private static final ConcurrentHashMap<Claim, CompletableFuture<Void>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+  /**
+   * Represents an artefact indexed in the database.
+   * @param artefact The artefact details
+   * @param fingerprints The number of fingerprints computed and kept by the winnowing
+   * @param instructions The number of inserted instructions and the time it took
+   */
+  public record IndexedArtefact(fr.uge.clonewar.backend.model.Artefact artefact, Job.Fingerprints fingerprints,
+                                Job.Instructions instructions) {
+    public IndexedArtefact {
+      Objects.requireNonNull(artefact);
+      Objects.requireNonNull(fingerprints);
+      Objects.requireNonNull(instructions);
+    }
+  }
+
+  private record InsertedInstructions(Job.Fingerprints fingerprints, Job.Instructions instructions) {}
 
   /**
    * Index artefact in the database
@@ -21,19 +56,77 @@ public class CloneDetectors {
    * @throws IOException if an I/O error occurs
    */
   public static fr.uge.clonewar.backend.model.Artefact indexArtefact(Database db, Artefact artefact) throws IOException {
+    return index(db, artefact).artefact();
+  }
+
+  /**
+   * Index artefact in the database, counting its fingerprints and timing the insertion of its instructions.
+   * @param db The database
+   * @param artefact The artefact to be indexed
+   * @return The artefact details, its fingerprints and the insertion of its instructions
+   * @throws IOException if an I/O error occurs
+   */
+  public static IndexedArtefact index(Database db, Artefact artefact) throws IOException {
     Objects.requireNonNull(db);
     Objects.requireNonNull(artefact);
 
     var jarName = artefact.main().getFileName().toString();
     var now = System.currentTimeMillis();
 
-    var artefactId = db.artefactTable().insert(new ArtefactRow(jarName, now));
+    var artefactId = db.artefactTable().insert(new ArtefactRow(jarName, now, db.instructionTable().fingerprinting().scheme()));
 
     var sources = ReadByteCode.extractSources(artefact.source());
     var files = insertFiles(db, artefactId, sources);
 
-    insertInstructions(db, artefact, files);
-    return new fr.uge.clonewar.backend.model.Artefact(artefactId, jarName, now);
+    var inserted = insertInstructions(db, artefact, files);
+    db.instructionTable().invalidate(artefactId);
+    db.instructionTable().writeSegment(artefactId);
+    db.hashIndexTable().index(artefactId);
+    sketchArtefact(db, artefactId);
+    db.artefactTable().markIndexed(artefactId);
+    return new IndexedArtefact(new fr.uge.clonewar.backend.model.Artefact(artefactId, jarName, now),
+        inserted.fingerprints(), inserted.instructions());
+  }
+
+  /**
+   * Stores the LSH buckets of the MinHash signatures of an indexed artefact and of its files,
+   * a file copied from another artefact makes them candidates even if the rest differs.
+   * Does nothing if the LSH candidate selection is disabled.
+   * @param db The database
+   * @param artefactId The id of the artefact
+   */
+  public static void sketchArtefact(Database db, int artefactId) {
+    Objects.requireNonNull(db);
+    var lsh = db.lshTable();
+    if (!lsh.enabled()) {
+      return;
+    }
+    var minHash = new MinHash(lsh.bands(), lsh.rows());
+    var instructions = db.instructionTable().getAll(artefactId);
+    var files = new HashMap<Integer, LongStream.Builder>();
+    for (var i = 0; i < instructions.size(); i++) {
+      files.computeIfAbsent(instructions.fileId(i), __ -> LongStream.builder()).add(instructions.hash(i));
+    }
+
+    var buckets = new HashSet<Long>();
+    var hashes = IntStream.range(0, instructions.size()).mapToLong(instructions::hash).distinct().toArray();
+    if (hashes.length != 0) {
+      addBuckets(buckets, minHash, hashes);
+    }
+    for (var builder : files.values()) {
+      var fileHashes = builder.build().distinct().toArray();
+      // small files are shared by most artefacts (accessors, empty constructors), they would make everything a candidate
+      if (fileHashes.length >= MIN_SKETCHED_FILE_HASHES) {
+        addBuckets(buckets, minHash, fileHashes);
+      }
+    }
+    lsh.insertAll(artefactId, buckets);
+  }
+
+  private static void addBuckets(Set<Long> buckets, MinHash minHash, long[] hashes) {
+    for (var bucket : minHash.buckets(minHash.signature(hashes))) {
+      buckets.add(bucket);
+    }
   }
 
   private static Map<String, Integer> insertFiles(Database db, int artefactId, List<Map.Entry<String, String>> sources) {
@@ -48,10 +141,13 @@ public class CloneDetectors {
         }).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
   }
 
-  private static void insertInstructions(Database db, Artefact artefact, Map<String, Integer> files) throws IOException {
-    var readByteCode = new ReadByteCode(artefact.main());
-    readByteCode.analyze(files.keySet());
-    readByteCode.forEach((f, instruction) -> {
+  private static InsertedInstructions insertInstructions(Database db, Artefact artefact, Map<String, Integer> files)
+      throws IOException {
+    var fingerprinting = db.instructionTable().fingerprinting();
+    var readByteCode = new ReadByteCode(artefact.main(), fingerprinting);
+    var start = System.nanoTime();
+    var inserted = new AtomicLong();
+    readByteCode.analyze(files.keySet(), (f, instruction) -> {
       var filename = ReadByteCode.extractExtension(f);
       var fileId = files.get(filename.getKey());
       if (fileId == null) {
@@ -60,40 +156,289 @@ public class CloneDetectors {
 
       var row = new InstructionRow(instruction, fileId);
       db.instructionTable().bufferedInsert(row);
+      inserted.incrementAndGet();
     });
     db.instructionTable().flushBuffer();
+    db.instructionTable().requireInserted(files.values());
+    var millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    return new InsertedInstructions(
+        new Job.Fingerprints(readByteCode.fingerprints(), readByteCode.selectedFingerprints()),
+        new Job.Instructions(inserted.get(), millis));
   }
 
   /**
-   * Computes indexed artefacts similarity.
+   * Computes indexed artefacts similarity, using one comparison thread per available processor.
    * @param db The database
    * @param reference The reference
    * @param toCompute Artefacts to compute
    */
   public static void computeClones(Database db, fr.uge.clonewar.backend.model.Artefact reference, List<fr.uge.clonewar.backend.model.Artefact> toCompute) {
+    computeClones(db, reference, toCompute, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Computes indexed artefacts similarity.
+   * Artefacts are compared to the reference concurrently by at most parallelism threads,
+   * results are written to the database by the calling thread.
+   * Only candidates of the reference are compared, the similarity of the others is 0: artefacts sharing
+   * an LSH bucket with the reference if it is sketched, otherwise artefacts sharing an instruction hash with it.
+   * @param db The database
+   * @param reference The reference
+   * @param toCompute Artefacts to compute
+   * @param parallelism The maximum number of comparisons running at the same time
+   * @throws IllegalArgumentException if parallelism is lower than 1
+   */
+  public static void computeClones(Database db, fr.uge.clonewar.backend.model.Artefact reference,
+                                   List<fr.uge.clonewar.backend.model.Artefact> toCompute, int parallelism) {
     Objects.requireNonNull(db);
     Objects.requireNonNull(reference);
     Objects.requireNonNull(toCompute);
-    var instructionsReference = db.instructionTable().getAll(reference.id());
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism < 1");
+    }
+    computeClones(db, reference, toCompute, true, false, false, parallelism);
+  }
+
+  /**
+   * Computes the similarity between an artefact and other indexed artefacts in both directions,
+   * the artefact being once the reference and once the clone of each pair.
+   * Pairs already stored in the database are not computed again.
+   * @param db The database
+   * @param artefact The artefact
+   * @param others Artefacts to compute
+   */
+  public static void computeMissingClones(Database db, fr.uge.clonewar.backend.model.Artefact artefact,
+                                          List<fr.uge.clonewar.backend.model.Artefact> others) {
+    Objects.requireNonNull(db);
+    Objects.requireNonNull(artefact);
+    Objects.requireNonNull(others);
+    var toCompute = others.stream()
+        .filter(other -> other.id() != artefact.id())
+        .toList();
+    computeClones(db, artefact, toCompute, true, true, true, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Identifies the similarity of an artefact compared to a reference.
+   * @param referenceId The id of the reference
+   * @param artefactId The id of the compared artefact
+   */
+  private record ClonePair(int referenceId, int artefactId) {}
 
+  /**
+   * Identifies a pair being compared in a database, a database is compared by identity.
+   * @param db The database storing the pair
+   * @param pair The pair
+   */
+  private record Claim(Database db, ClonePair pair) {}
+
+  private static void computeClones(Database db, fr.uge.clonewar.backend.model.Artefact reference,
+                                    List<fr.uge.clonewar.backend.model.Artefact> toCompute,
+                                    boolean forward, boolean backward, boolean skipStored, int parallelism) {
+    // concurrent callers share the computation of a pair instead of storing it twice
+    var claimed = new HashMap<ClonePair, CompletableFuture<Void>>();
+    var awaited = new ArrayList<CompletableFuture<Void>>();
     for (var artefact : toCompute) {
-      var instruction = db.instructionTable().getAll(artefact.id());
-      var result = Karp.rabinKarp(instruction, instructionsReference);
-      var percentage = Karp.average(result.getValue(), instruction.size());
+      if (forward) {
+        claim(db, new ClonePair(reference.id(), artefact.id()), claimed, awaited);
+      }
+      if (backward) {
+        claim(db, new ClonePair(artefact.id(), reference.id()), claimed, awaited);
+      }
+    }
+
+    try {
+      var pairs = new HashSet<>(claimed.keySet());
+      if (skipStored) {
+        // read once claimed, a pair released by another caller has been stored before
+        var asReference = db.cloneTable().getCloneIds(reference.id());
+        var asClone = db.cloneTable().getReferenceIds(reference.id());
+        pairs.removeIf(pair -> pair.referenceId() == reference.id()
+            ? asReference.contains(pair.artefactId())
+            : asClone.contains(pair.referenceId()));
+      }
+      compare(db, reference, toCompute, pairs, parallelism);
+    } catch (RuntimeException | Error e) {
+      release(db, claimed, e);
+      throw e;
+    }
+    release(db, claimed, null);
+    awaited.forEach(CompletableFuture::join);
+  }
+
+  private static void claim(Database db, ClonePair pair, Map<ClonePair, CompletableFuture<Void>> claimed,
+                            List<CompletableFuture<Void>> awaited) {
+    var future = new CompletableFuture<Void>();
+    var running = IN_FLIGHT.putIfAbsent(new Claim(db, pair), future);
+    if (running == null) {
+      claimed.put(pair, future);
+    } else {
+      awaited.add(running);
+    }
+  }
+
+  private static void release(Database db, Map<ClonePair, CompletableFuture<Void>> claimed, Throwable failure) {
+    claimed.forEach((pair, future) -> {
+      IN_FLIGHT.remove(new Claim(db, pair), future);
+      if (failure == null) {
+        future.complete(null);
+      } else {
+        future.completeExceptionally(failure);
+      }
+    });
+  }
+
+  private static void compare(Database db, fr.uge.clonewar.backend.model.Artefact reference,
+                              List<fr.uge.clonewar.backend.model.Artefact> toCompute, Set<ClonePair> pairs, int parallelism) {
+    Predicate<fr.uge.clonewar.backend.model.Artefact> forward = artefact -> pairs.contains(new ClonePair(reference.id(), artefact.id()));
+    Predicate<fr.uge.clonewar.backend.model.Artefact> backward = artefact -> pairs.contains(new ClonePair(artefact.id(), reference.id()));
+    var remaining = toCompute.stream()
+        .filter(forward.or(backward))
+        .toList();
+    if (remaining.isEmpty()) {
+      return;
+    }
+    var instructionsReference = db.instructionTable().getAll(reference.id());
+    var filesReference = FileHashes.of(instructionsReference);
+    var candidates = candidates(db, reference.id());
+    var clones = new ArrayList<CloneRow>();
+    // pairs that are not candidates are stored as skipped, their 0% is not measured
+    for (var artefact : remaining) {
+      if (!candidates.contains(artefact.id())) {
+        if (forward.test(artefact)) {
+          addClone(db, clones, new CloneRow(reference.id(), artefact.id(), 0, true));
+        }
+        if (backward.test(artefact)) {
+          addClone(db, clones, new CloneRow(artefact.id(), reference.id(), 0, true));
+        }
+      }
+    }
+
+    try (var executor = Executors.newFixedThreadPool(parallelism)) {
+      var completion = new ExecutorCompletionService<List<Comparison>>(executor);
+      var artefacts = remaining.stream()
+          .filter(artefact -> candidates.contains(artefact.id()))
+          .iterator();
+      var running = 0;
+      // bounds the number of comparisons kept in memory while waiting to be written
+      for (; running < MAX_PENDING_PER_THREAD * parallelism && artefacts.hasNext(); running++) {
+        var artefact = artefacts.next();
+        submitComparison(db, completion, reference, instructionsReference, filesReference, artefact, forward.test(artefact), backward.test(artefact));
+      }
+      for (; running > 0; running--) {
+        var comparisons = takeComparison(completion);
+        if (artefacts.hasNext()) {
+          var artefact = artefacts.next();
+          submitComparison(db, completion, reference, instructionsReference, filesReference, artefact, forward.test(artefact), backward.test(artefact));
+          running++;
+        }
+
+        for (var comparison : comparisons) {
+          // the clone row marks the pair computed, it is stored once its diff is
+          insertDiff(db, comparison.reference(), comparison.instructions(), comparison.matches());
+          db.fileSimilarityTable().insertAll(comparison.row().artefactId(), comparison.row().cloneId(), comparison.files());
+          addClone(db, clones, comparison.row());
+        }
+      }
+    }
+    db.cloneTable().insertAll(clones);
+  }
 
-      db.cloneTable().insert(new CloneRow(reference.id(), artefact.id(), (int)percentage));
-      insertDiff(db, result.getKey());
+  private static Set<Integer> candidates(Database db, int artefactId) {
+    var lsh = db.lshTable();
+    if (lsh.enabled() && lsh.isSketched(artefactId)) {
+      return lsh.candidates(artefactId);
     }
+    return db.hashIndexTable().candidates(artefactId);
   }
 
-  private static void insertDiff(Database db, HashMap<InstructionRow, Set<InstructionRow>> result) {
-    result.entrySet()
-        .stream()
-        .flatMap(e -> {
-          var ref = e.getKey();
-          return e.getValue()
-              .stream()
-              .map(i -> new DiffTable.DiffRow(ref.fileId(), i.fileId(), ref.instruction().line(), i.instruction().line()));
-        }).forEach(db.diffTable()::insert);
+  private static void addClone(Database db, List<CloneRow> clones, CloneRow clone) {
+    clones.add(clone);
+    if (clones.size() >= CLONE_BATCH_SIZE) {
+      db.cloneTable().insertAll(clones);
+      clones.clear();
+    }
+  }
+
+  private record Comparison(CloneRow row, InstructionColumns reference, InstructionColumns instructions, int[] matches,
+                            List<FileSimilarityRow> files) {}
+
+  private static void submitComparison(Database db, CompletionService<List<Comparison>> completion,
+                                       fr.uge.clonewar.backend.model.Artefact reference, InstructionColumns instructionsReference,
+                                       FileHashes filesReference, fr.uge.clonewar.backend.model.Artefact artefact, boolean forward, boolean backward) {
+    completion.submit(() -> {
+      var instructions = db.instructionTable().getAll(artefact.id());
+      var files = FileHashes.of(instructions);
+      var comparisons = new ArrayList<Comparison>(2);
+      if (forward) {
+        comparisons.add(compare(reference.id(), instructionsReference, filesReference, artefact.id(), instructions, files));
+      }
+      if (backward) {
+        comparisons.add(compare(artefact.id(), instructions, files, reference.id(), instructionsReference, filesReference));
+      }
+      return comparisons;
+    });
+  }
+
+  private static Comparison compare(int referenceId, InstructionColumns reference, FileHashes referenceFiles,
+                                    int artefactId, InstructionColumns instructions, FileHashes files) {
+    var result = Karp.rabinKarp(instructions, reference);
+    var percentage = Karp.average(result.getValue(), instructions.size());
+    return new Comparison(new CloneRow(referenceId, artefactId, (int) percentage, false), reference, instructions, result.getKey(),
+        FileHashes.compare(referenceId, referenceFiles, artefactId, files));
+  }
+
+  private static <T> T takeComparison(CompletionService<T> completion) {
+    try {
+      return completion.take().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private record LinePair(int referenceFile, int cloneFile, int referenceLine, int cloneLine) {
+    int diagonal() {
+      return referenceLine - cloneLine;
+    }
+  }
+
+  private static void insertDiff(Database db, InstructionColumns reference, InstructionColumns other, int[] matches) {
+    // pairs of lines on the same diagonal of a pair of files are contiguous once sorted
+    var pairs = IntStream.range(0, matches.length)
+        .filter(i -> matches[i] != -1)
+        .mapToObj(i -> {
+          var ref = matches[i];
+          return new LinePair(reference.fileId(ref), other.fileId(i), reference.line(ref), other.line(i));
+        })
+        .distinct()
+        .sorted(Comparator.comparingInt(LinePair::referenceFile)
+            .thenComparingInt(LinePair::cloneFile)
+            .thenComparingInt(LinePair::diagonal)
+            .thenComparingInt(LinePair::referenceLine))
+        .toList();
+    db.diffTable().insertAll(mergeLines(pairs));
+  }
+
+  private static List<DiffTable.DiffRow> mergeLines(List<LinePair> pairs) {
+    var rows = new ArrayList<DiffTable.DiffRow>();
+    var i = 0;
+    while (i < pairs.size()) {
+      var start = pairs.get(i);
+      var end = start;
+      while (++i < pairs.size()) {
+        var next = pairs.get(i);
+        if (next.referenceFile != start.referenceFile || next.cloneFile != start.cloneFile
+            || next.diagonal() != start.diagonal() || next.referenceLine != end.referenceLine + 1) {
+          break;
+        }
+        end = next;
+      }
+      rows.add(new DiffTable.DiffRow(start.referenceFile, start.cloneFile,
+          start.referenceLine, end.referenceLine, start.cloneLine, end.cloneLine));
+    }
+    return rows;
   }
 }
@@ -0,0 +1,212 @@
+package fr.uge.clonewar;
+
+import fr.uge.clonewar.backend.database.FileSimilarityTable.FileSimilarityRow;
+import fr.uge.clonewar.backend.database.InstructionColumns;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.stream.LongStream;
+
+/**
+ * Represents the distinct fingerprints of each file of an artefact, sorted once so that
+ * the files of two artefacts are compared by a single merge of their fingerprints.
+ * Fingerprints found in many files (default constructors, accessors) would pair every file with every other one,
+ * they are skipped, and only the most similar reference files of each file are kept.
+ */
+public final class FileHashes {
+  /**
+   * A fingerprint in more files of one of the artefacts is not counted.
+   */
+  public static final int MAX_FILES_PER_HASH = 8;
+  /**
+   * Number of reference files kept for each file compared to.
+   */
+  public static final int MAX_MATCHES_PER_FILE = 5;
+
+  // sorted hashes, a hash appears once per file that contains it
+  private final long[] hashes;
+  private final int[] fileIds;
+  private final Map<Integer, Integer> distinctHashes;
+
+  private FileHashes(long[] hashes, int[] fileIds, Map<Integer, Integer> distinctHashes) {
+    this.hashes = hashes;
+    this.fileIds = fileIds;
+    this.distinctHashes = distinctHashes;
+  }
+
+  private static final class Cursor {
+    private final int fileId;
+    private final long[] hashes;
+    private int index;
+
+    private Cursor(int fileId, long[] hashes) {
+      this.fileId = fileId;
+      this.hashes = hashes;
+    }
+
+    private long hash() {
+      return hashes[index];
+    }
+  }
+
+  /**
+   * Sorts the distinct fingerprints of each file, then merges the files in a single sorted array.
+   * @param instructions The instructions of an artefact
+   * @return The sorted fingerprints of the files
+   */
+  static FileHashes of(InstructionColumns instructions) {
+    Objects.requireNonNull(instructions);
+    var builders = new HashMap<Integer, LongStream.Builder>();
+    for (var i = 0; i < instructions.size(); i++) {
+      builders.computeIfAbsent(instructions.fileId(i), __ -> LongStream.builder()).add(instructions.hash(i));
+    }
+
+    var distinctHashes = new HashMap<Integer, Integer>();
+    var queue = new PriorityQueue<>(Comparator.comparingLong(Cursor::hash));
+    var size = 0;
+    for (var entry : builders.entrySet()) {
+      var fileHashes = entry.getValue().build().sorted().distinct().toArray();
+      distinctHashes.put(entry.getKey(), fileHashes.length);
+      queue.add(new Cursor(entry.getKey(), fileHashes));
+      size += fileHashes.length;
+    }
+
+    var hashes = new long[size];
+    var fileIds = new int[size];
+    for (var i = 0; i < size; i++) {
+      var cursor = queue.remove();
+      hashes[i] = cursor.hash();
+      fileIds[i] = cursor.fileId;
+      if (++cursor.index < cursor.hashes.length) {
+        queue.add(cursor);
+      }
+    }
+    return new FileHashes(hashes, fileIds, distinctHashes);
+  }
+
+  /**
+   * Counts the fingerprints shared by each pair of files of two artefacts by merging their sorted fingerprints.
+   * Fingerprints found in more than MAX_FILES_PER_HASH files of one of the artefacts are skipped,
+   * so the number of counted pairs is linear in the number of fingerprints.
+   * @param referenceId The id of the reference artefact
+   * @param reference The fingerprints of the reference
+   * @param cloneId The id of the artefact compared to
+   * @param clone The fingerprints of the artefact compared to
+   * @return For each file compared to, the MAX_MATCHES_PER_FILE reference files sharing the most fingerprints with it
+   */
+  static List<FileSimilarityRow> compare(int referenceId, FileHashes reference, int cloneId, FileHashes clone) {
+    Objects.requireNonNull(reference);
+    Objects.requireNonNull(clone);
+    // shared fingerprints by pair of files, the reference file in the high bits
+    var shared = new PairCounts();
+    int i = 0, j = 0;
+    while (i < reference.hashes.length && j < clone.hashes.length) {
+      var hash = reference.hashes[i];
+      var other = clone.hashes[j];
+      if (hash < other) {
+        i++;
+      } else if (hash > other) {
+        j++;
+      } else {
+        var referenceEnd = i;
+        while (referenceEnd < reference.hashes.length && reference.hashes[referenceEnd] == hash) {
+          referenceEnd++;
+        }
+        var cloneEnd = j;
+        while (cloneEnd < clone.hashes.length && clone.hashes[cloneEnd] == hash) {
+          cloneEnd++;
+        }
+        if (referenceEnd - i <= MAX_FILES_PER_HASH && cloneEnd - j <= MAX_FILES_PER_HASH) {
+          for (var r = i; r < referenceEnd; r++) {
+            for (var c = j; c < cloneEnd; c++) {
+              shared.increment(((long) reference.fileIds[r] << 32) | (clone.fileIds[c] & 0xFFFFFFFFL));
+            }
+          }
+        }
+        i = referenceEnd;
+        j = cloneEnd;
+      }
+    }
+
+    var matches = new HashMap<Integer, List<FileSimilarityRow>>();
+    shared.forEach((files, count) -> {
+      var referenceFileId = (int) (files >>> 32);
+      var cloneFileId = (int) files;
+      var percentage = (int) (100.0 * count / clone.distinctHashes.get(cloneFileId));
+      matches.computeIfAbsent(cloneFileId, __ -> new ArrayList<>())
+          .add(new FileSimilarityRow(referenceId, cloneId, referenceFileId, cloneFileId, count, percentage));
+    });
+    var rows = new ArrayList<FileSimilarityRow>();
+    for (var fileMatches : matches.values()) {
+      fileMatches.stream()
+          .sorted(Comparator.comparingInt(FileSimilarityRow::shared).reversed()
+              .thenComparingInt(FileSimilarityRow::referenceFileId))
+          .limit(MAX_MATCHES_PER_FILE)
+          .forEach(rows::add);
+    }
+    return rows;
+  }
+
+  /**
+   * Open addressing table counting pairs of files, without boxing the keys nor the counts.
+   */
+  private static final class PairCounts {
+    private interface Consumer {
+      void accept(long key, int count);
+    }
+
+    private long[] keys = new long[16];
+    private int[] counts = new int[16];
+    private int size;
+
+    private int slot(long key) {
+      var mixed = key * 0x9E3779B97F4A7C15L;
+      var mask = keys.length - 1;
+      var slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+      while (counts[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void increment(long key) {
+      var slot = slot(key);
+      if (counts[slot] == 0) {
+        keys[slot] = key;
+        if (++size * 2 > keys.length) {
+          counts[slot] = 1;
+          grow();
+          return;
+        }
+      }
+      counts[slot]++;
+    }
+
+    private void grow() {
+      var oldKeys = keys;
+      var oldCounts = counts;
+      keys = new long[oldKeys.length * 2];
+      counts = new int[oldKeys.length * 2];
+      for (var i = 0; i < oldKeys.length; i++) {
+        if (oldCounts[i] != 0) {
+          var slot = slot(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+
+    private void forEach(Consumer consumer) {
+      for (var i = 0; i < keys.length; i++) {
+        if (counts[i] != 0) {
+          consumer.accept(keys[i], counts[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package fr.uge.clonewar;
+
+/**
+ * Represents how the fingerprints of the instructions of a class are computed.
+ * A fingerprint is a polynomial rolling hash of window consecutive instructions, modulo the prime 2^61 - 1.
+ * Of every winnowingWindow consecutive fingerprints, only the rightmost minimal one is kept.
+ * @param window The number of instructions of a fingerprint
+ * @param winnowingWindow The size of the winnowing window, 1 keeps every fingerprint
+ */
+public record Fingerprinting(int window, int winnowingWindow) {
+  /**
+   * Default number of instructions of a fingerprint.
+   */
+  public static final int DEFAULT_WINDOW = 5;
+  /**
+   * Keeps every fingerprint of windows of DEFAULT_WINDOW instructions.
+   */
+  public static final Fingerprinting DEFAULT = new Fingerprinting(DEFAULT_WINDOW, 1);
+
+  public Fingerprinting {
+    if (window < 1) {
+      throw new IllegalArgumentException("window < 1");
+    }
+    if (winnowingWindow < 1) {
+      throw new IllegalArgumentException("winnowingWindow < 1");
+    }
+  }
+
+  /**
+   * Gets the name of the hash function, artefacts are comparable only if their fingerprints have the same scheme.
+   * Winnowed and full artefacts do not keep the same proportion of their fingerprints, their percentages
+   * would not be comparable, so the winnowing window is part of the scheme when some fingerprints are skipped.
+   * @return The scheme
+   */
+  public String scheme() {
+    var scheme = "poly64-" + window;
+    return winnowingWindow == 1 ? scheme : scheme + "-w" + winnowingWindow;
+  }
+
+  /**
+   * Gets the minimum number of shared consecutive instructions that are always found after winnowing.
+   * @return The guaranteed length
+   */
+  public int guaranteedLength() {
+    return winnowingWindow + window - 1;
+  }
+}
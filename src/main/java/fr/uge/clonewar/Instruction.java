@@ -5,4 +5,4 @@ package fr.uge.clonewar;
  * @param line The line of the instruction
  * @param hash The hash of the instruction
  */
-public record Instruction(int line, int hash) {}
+public record Instruction(int line, long hash) {}
@@ -0,0 +1,208 @@
+package fr.uge.clonewar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a jar through a memory mapping of the whole archive.
+ * Only the central directory is parsed, stored entries are copied straight from the mapping
+ * and deflated ones are inflated from it.
+ * Entries can be read by several threads at the same time.
+ */
+public final class JarReader implements Closeable {
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int LOCAL_FILE_HEADER = 0x04034b50;
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  /**
+   * Represents an entry of the central directory.
+   * @param name The name of the entry
+   * @param method The compression method
+   * @param compressedSize The size of the entry in the archive
+   * @param size The size of the entry once decompressed
+   * @param localHeaderOffset The position of the local header of the entry
+   */
+  public record Entry(String name, int method, int compressedSize, int size, int localHeaderOffset) {
+    public Entry {
+      Objects.requireNonNull(name);
+    }
+
+    /**
+     * Tells if the entry is a directory.
+     * @return true if the entry is a directory
+     */
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final List<Entry> entries;
+
+  private JarReader(FileChannel channel, MappedByteBuffer buffer, List<Entry> entries) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.entries = entries;
+  }
+
+  /**
+   * Opens a jar and reads its central directory.
+   * @param jar The jar
+   * @return The reader
+   * @throws IOException if an I/O error occurs or if the jar is not a supported zip archive
+   */
+  public static JarReader open(Path jar) throws IOException {
+    Objects.requireNonNull(jar);
+    var channel = FileChannel.open(jar, StandardOpenOption.READ);
+    try {
+      var size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new ZipException("Archive too large: " + jar);
+      }
+      var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return new JarReader(channel, buffer, readCentralDirectory(buffer));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static List<Entry> readCentralDirectory(MappedByteBuffer buffer) throws ZipException {
+    var end = findEndOfCentralDirectory(buffer);
+    var count = Short.toUnsignedInt(buffer.getShort(end + 10));
+    var offset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+    if (count == 0xFFFF || offset == 0xFFFFFFFFL) {
+      throw new ZipException("ZIP64 archives are not supported");
+    }
+
+    var entries = new ArrayList<Entry>(count);
+    var position = (int) offset;
+    for (var i = 0; i < count; i++) {
+      if ((long) position + CENTRAL_DIRECTORY_HEADER_SIZE > buffer.limit() || buffer.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+        throw new ZipException("Invalid central directory header");
+      }
+      var method = Short.toUnsignedInt(buffer.getShort(position + 10));
+      var compressedSize = buffer.getInt(position + 20);
+      var size = buffer.getInt(position + 24);
+      var nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+      var extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+      var commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+      var localHeaderOffset = buffer.getInt(position + 42);
+      if (compressedSize < 0 || size < 0 || localHeaderOffset < 0) {
+        throw new ZipException("ZIP64 archives are not supported");
+      }
+
+      if ((long) position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength > buffer.limit()) {
+        throw new ZipException("Invalid central directory header");
+      }
+      var name = new byte[nameLength];
+      buffer.get(position + CENTRAL_DIRECTORY_HEADER_SIZE, name);
+      entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, compressedSize, size, localHeaderOffset));
+      position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return List.copyOf(entries);
+  }
+
+  private static int findEndOfCentralDirectory(MappedByteBuffer buffer) throws ZipException {
+    var last = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+    var first = Math.max(0, last - MAX_COMMENT_SIZE);
+    for (var position = last; position >= first; position--) {
+      if (buffer.getInt(position) == END_OF_CENTRAL_DIRECTORY) {
+        return position;
+      }
+    }
+    throw new ZipException("End of central directory not found");
+  }
+
+  /**
+   * Gets the entries of the jar in the central directory order.
+   * @return The entries
+   */
+  public List<Entry> entries() {
+    return entries;
+  }
+
+  /**
+   * Reads the content of an entry.
+   * @param entry An entry of this jar
+   * @return The decompressed content
+   * @throws IOException if the entry is corrupted or uses an unsupported compression method
+   */
+  public byte[] read(Entry entry) throws IOException {
+    Objects.requireNonNull(entry);
+    var header = entry.localHeaderOffset();
+    if ((long) header + LOCAL_FILE_HEADER_SIZE > buffer.limit() || buffer.getInt(header) != LOCAL_FILE_HEADER) {
+      throw new ZipException("Invalid local header: " + entry.name());
+    }
+    var nameLength = Short.toUnsignedInt(buffer.getShort(header + 26));
+    var extraLength = Short.toUnsignedInt(buffer.getShort(header + 28));
+    var data = header + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength;
+    if ((long) data + entry.compressedSize() > buffer.limit()) {
+      throw new ZipException("Truncated entry: " + entry.name());
+    }
+    // a stored entry is copied as is, a size other than the one in the archive would read past the entry
+    if (entry.method() == STORED && entry.size() != entry.compressedSize()) {
+      throw new ZipException("Invalid stored entry size: " + entry.name());
+    }
+
+    return switch (entry.method()) {
+      case STORED -> {
+        var bytes = new byte[entry.size()];
+        buffer.get(data, bytes);
+        yield bytes;
+      }
+      case DEFLATED -> inflate(entry, data);
+      default -> throw new ZipException("Unsupported compression method " + entry.method() + ": " + entry.name());
+    };
+  }
+
+  private byte[] inflate(Entry entry, int data) throws ZipException {
+    var inflater = new Inflater(true);
+    try {
+      inflater.setInput(buffer.slice(data, entry.compressedSize()));
+      var bytes = new byte[entry.size()];
+      var length = 0;
+      while (length < bytes.length) {
+        var inflated = inflater.inflate(bytes, length, bytes.length - length);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new ZipException("Truncated entry: " + entry.name());
+        }
+        length += inflated;
+      }
+      return bytes;
+    } catch (DataFormatException e) {
+      throw new ZipException("Invalid entry " + entry.name() + ": " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Closes the jar.
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
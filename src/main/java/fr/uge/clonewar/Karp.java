@@ -1,11 +1,7 @@
 package fr.uge.clonewar;
 
-import fr.uge.clonewar.backend.database.Database;
-import fr.uge.clonewar.backend.database.InstructionTable.InstructionRow;
-import io.helidon.config.Config;
-import io.helidon.dbclient.DbClient;
+import fr.uge.clonewar.backend.database.InstructionColumns;
 
-import java.io.IOException;
 import java.util.*;
 
 public class Karp {
@@ -14,21 +10,66 @@ public class Karp {
    * Perform the Rabin Karp algorithm.
    * @param other Instructions
    * @param reference The reference
-   * @return A tuple of matched lines and number of same instructions
+   * @return A tuple of matched reference indexes (one per instruction of other, -1 when nothing matched)
+   * and number of same instructions
    */
-  public static Map.Entry<HashMap<InstructionRow, Set<InstructionRow>>, Integer> rabinKarp(List<InstructionRow> other, List<InstructionRow> reference) {
+  public static Map.Entry<int[], Integer> rabinKarp(InstructionColumns other, InstructionColumns reference) {
+    var index = new HashIndex(reference);
     var countSameInstr = 0;
-    var mapIndex = new HashMap<InstructionRow, Set<InstructionRow>>();
-    for (var tuple1: other) {
-      for (var tuple2: reference) {
-        if (tuple1.instruction().hash() == tuple2.instruction().hash()) {
-          countSameInstr += 1;
-          mapIndex.computeIfAbsent(tuple2, integer -> new HashSet<>()).add(tuple1);
-          break;
+    var matches = new int[other.size()];
+    for (var i = 0; i < other.size(); i++) {
+      var match = index.get(other.hash(i));
+      if (match != -1) {
+        countSameInstr += 1;
+      }
+      matches[i] = match;
+    }
+    return Map.entry(matches, countSameInstr);
+  }
+
+  /**
+   * Open addressing table from a hash to the index of the first instruction that has it,
+   * so a lookup gives the same match as a linear scan of the instructions.
+   */
+  private static final class HashIndex {
+    private final long[] hashes;
+    private final int[] indexes;
+    private final int mask;
+
+    private HashIndex(InstructionColumns instructions) {
+      var capacity = Integer.highestOneBit(Math.max(1, instructions.size()) * 2) * 2;
+      hashes = new long[capacity];
+      indexes = new int[capacity];
+      Arrays.fill(indexes, -1);
+      mask = capacity - 1;
+      for (var i = 0; i < instructions.size(); i++) {
+        var hash = instructions.hash(i);
+        var slot = slot(hash);
+        while (indexes[slot] != -1 && hashes[slot] != hash) {
+          slot = (slot + 1) & mask;
+        }
+        if (indexes[slot] == -1) {
+          hashes[slot] = hash;
+          indexes[slot] = i;
+        }
+      }
+    }
+
+    private int slot(long hash) {
+      var mixed = hash * 0x9E3779B97F4A7C15L;
+      return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private int get(long hash) {
+      var slot = slot(hash);
+      while (indexes[slot] != -1) {
+        if (hashes[slot] == hash) {
+          return indexes[slot];
         }
+        slot = (slot + 1) & mask;
       }
+      return -1;
     }
-    return Map.entry(mapIndex, countSameInstr);
   }
 
   /**
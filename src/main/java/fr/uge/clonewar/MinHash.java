@@ -0,0 +1,92 @@
+package fr.uge.clonewar;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Computes MinHash signatures of sets of instruction hashes and splits them into LSH bands.
+ * Two sets of Jaccard similarity s share at least one band with probability 1 - (1 - s^rows)^bands.
+ */
+public final class MinHash {
+  // signatures must be comparable between runs, permutations are not random
+  private static final long SEED = 0x436C6F6E65576172L;
+
+  private final int bands;
+  private final int rows;
+  private final long[] multipliers;
+  private final long[] increments;
+
+  /**
+   * Creates the hash functions of signatures of bands * rows values.
+   * @param bands The number of bands
+   * @param rows The number of values of a band
+   * @throws IllegalArgumentException if bands or rows is lower than 1
+   */
+  public MinHash(int bands, int rows) {
+    if (bands < 1) {
+      throw new IllegalArgumentException("bands < 1");
+    }
+    if (rows < 1) {
+      throw new IllegalArgumentException("rows < 1");
+    }
+    this.bands = bands;
+    this.rows = rows;
+    var random = new SplittableRandom(SEED);
+    multipliers = new long[bands * rows];
+    increments = new long[bands * rows];
+    for (var i = 0; i < multipliers.length; i++) {
+      multipliers[i] = random.nextLong() | 1;
+      increments[i] = random.nextLong();
+    }
+  }
+
+  /**
+   * Computes the signature of a set of hashes.
+   * @param hashes The distinct hashes of the set
+   * @return The minimum of each hash function over the set
+   */
+  public long[] signature(long[] hashes) {
+    var signature = new long[multipliers.length];
+    Arrays.fill(signature, Long.MAX_VALUE);
+    for (var hash : hashes) {
+      for (var i = 0; i < signature.length; i++) {
+        var value = mix(multipliers[i] * hash + increments[i]);
+        if (value < signature[i]) {
+          signature[i] = value;
+        }
+      }
+    }
+    return signature;
+  }
+
+  /**
+   * Computes the bucket of each band of a signature.
+   * Buckets of different bands are different, they can be stored together.
+   * @param signature The signature
+   * @return The buckets, one per band
+   * @throws IllegalArgumentException if the signature was not computed by this instance
+   */
+  public long[] buckets(long[] signature) {
+    if (signature.length != bands * rows) {
+      throw new IllegalArgumentException("signature of " + signature.length + " values");
+    }
+    var buckets = new long[bands];
+    for (var band = 0; band < bands; band++) {
+      long bucket = band;
+      for (var row = 0; row < rows; row++) {
+        bucket = mix(bucket * 0x9E3779B97F4A7C15L + signature[band * rows + row]);
+      }
+      buckets[band] = bucket;
+    }
+    return buckets;
+  }
+
+  // finalizer of MurmurHash3, spreads every input bit over the whole output
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xFF51AFD7ED558CCDL;
+    value ^= value >>> 33;
+    value *= 0xC4CEB93FE1A85EC5L;
+    return value ^ (value >>> 33);
+  }
+}
@@ -4,96 +4,159 @@ package fr.uge.clonewar;
 import org.objectweb.asm.*;
 
 import java.io.*;
-import java.lang.module.ModuleFinder;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class ReadByteCode {
+  // Mersenne prime, a product of two values lower than it is reduced with shifts
+  static final long MODULUS = (1L << 61) - 1;
+  static final long BASE = 0x1F3D5B79A2C4E6FL % MODULUS;
+  private static final int MAX_PENDING_PER_THREAD = 4;
+  // hash of the normalized class of each opcode, and of the class followed by a space for operands
+  private static final int[] OPCODE_CLASSES = new int[256];
+  private static final int[] OPCODE_CLASSES_WITH_OPERAND = new int[256];
+  private static final boolean[] KNOWN_OPCODES = new boolean[256];
+
+  static {
+    for (var opcode = 0; opcode < KNOWN_OPCODES.length; opcode++) {
+      var opcodeClass = opcodeClass(opcode);
+      if (opcodeClass != null) {
+        KNOWN_OPCODES[opcode] = true;
+        OPCODE_CLASSES[opcode] = opcodeClass.hashCode();
+        OPCODE_CLASSES_WITH_OPERAND[opcode] = (opcodeClass + " ").hashCode();
+      }
+    }
+  }
 
-  private record Tuple(int line, String opcode) {}
-
-  private final HashMap<String, TreeMap<Integer, List<String>>> files = new HashMap<>();
-  private int line;
   private final Path jar;
+  private final Fingerprinting fingerprinting;
+  private long fingerprints;
+  private long selectedFingerprints;
 
   public ReadByteCode(Path jar) {
-    Objects.requireNonNull(jar);
-    this.jar = jar;
+    this(jar, Fingerprinting.DEFAULT);
   }
 
   /**
-   * Performs an action for each element of analyzed instructions.
-   * @param consumer The action to perform on the instruction
+   * Creates a reader that computes the fingerprints of each class as described by fingerprinting.
+   * With winnowing, code shared by two classes is still found if it is at least
+   * fingerprinting.guaranteedLength() instructions long, shorter shared code may be missed
+   * and similarities are estimated on the kept fingerprints.
+   * @param jar The main jar
+   * @param fingerprinting The window of the fingerprints and of the winnowing
    */
-  public void forEach(BiConsumer<? super String, ? super Instruction> consumer) {
-    Objects.requireNonNull(consumer);
-    forEachIterator((f, iterator) ->
-        consumeInstructions(iterator, instruction -> consumer.accept(f, instruction)));
-  }
-
-  private void forEachIterator(BiConsumer<? super String, ? super Iterator<ReadByteCode.Tuple>> consumer) {
-    Objects.requireNonNull(consumer);
-    stream()
-        .forEach(entry -> consumer.accept(entry.getKey(), entry.getValue()));
+  public ReadByteCode(Path jar, Fingerprinting fingerprinting) {
+    Objects.requireNonNull(jar);
+    Objects.requireNonNull(fingerprinting);
+    this.jar = jar;
+    this.fingerprinting = fingerprinting;
   }
 
-  private Stream<Map.Entry<String, Iterator<ReadByteCode.Tuple>>> stream() {
-    return files.entrySet()
-        .stream()
-        .map(entry -> Map.entry(entry.getKey(), getInstructionsIterator(entry.getValue())));
+  /**
+   * Gets the number of fingerprints computed by the analyses.
+   * @return The number of fingerprints
+   */
+  public long fingerprints() {
+    return fingerprints;
   }
 
-  private static Iterator<ReadByteCode.Tuple> getInstructionsIterator(TreeMap<Integer, List<String>> instructions) {
-    return instructions.entrySet()
-        .stream()
-        .flatMap(entry -> entry.getValue().stream()
-            .map(value -> new Tuple(entry.getKey(), value)))
-        .iterator();
+  /**
+   * Gets the number of fingerprints given to the consumer by the analyses.
+   * @return The number of fingerprints kept by winnowing
+   */
+  public long selectedFingerprints() {
+    return selectedFingerprints;
   }
 
-  @Override
-  public String toString() {
-    return files.entrySet()
-        .stream()
-        .map(entry -> entry.getKey() + " : " + entry.getValue())
-        .collect(Collectors.joining("\n"));
+  /**
+   * Performs an analysis over the main jar to extract instructions,
+   * using one analysis thread per available processor.
+   * @param javaFiles The java files used to match with right class files
+   * @param consumer The action to perform on each instruction with the name of its class file
+   * @throws IOException if an I/O error occurs
+   */
+  public void analyze(Set<String> javaFiles, BiConsumer<? super String, ? super Instruction> consumer) throws IOException {
+    analyze(javaFiles, consumer, Runtime.getRuntime().availableProcessors());
   }
 
   /**
    * Performs an analysis over the main jar to extract instructions.
+   * Classes are read from the jar mapping and analyzed concurrently by at most parallelism threads,
+   * each with its own state.
+   * Instructions are given to the consumer by the calling thread, class after class in the jar order,
+   * nothing is kept once a class has been consumed.
    * @param javaFiles The java files used to match with right class files
+   * @param consumer The action to perform on each instruction with the name of its class file
+   * @param parallelism The maximum number of classes analyzed at the same time
    * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if parallelism is lower than 1
    */
-  public void analyze(Set<String> javaFiles) throws IOException {
+  public void analyze(Set<String> javaFiles, BiConsumer<? super String, ? super Instruction> consumer,
+                      int parallelism) throws IOException {
     Objects.requireNonNull(javaFiles);
+    Objects.requireNonNull(consumer);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism < 1");
+    }
 
-    var finder = ModuleFinder.of(jar);
-    var moduleReference = finder.findAll().stream().findFirst().orElseThrow();
-
-    try (var reader = moduleReference.open()) {
-      var jarFiles = reader.list()
-          .filter(f -> f.endsWith(".class"))
-          .filter(f -> javaFiles.contains(extractExtension(f).getKey()));
-      for (var filename: (Iterable<String>) jarFiles::iterator) {
-        try (var inputStream = reader.open(filename).orElseThrow()) {
-          var instructions = analyzeByteCode(inputStream);
-          files.put(filename, instructions);
+    try (var reader = JarReader.open(jar);
+         var executor = Executors.newFixedThreadPool(parallelism)) {
+      var jarFiles = reader.entries().stream()
+          .filter(entry -> entry.name().endsWith(".class"))
+          .filter(entry -> javaFiles.contains(extractExtension(entry.name()).getKey()))
+          .toList();
+      var pending = new ArrayDeque<Map.Entry<String, Future<ClassInstructions>>>();
+      for (var entry: jarFiles) {
+        pending.add(Map.entry(entry.name(), executor.submit(() -> analyzeByteCode(reader.read(entry)))));
+        // bounds the number of analyzed classes waiting to be consumed
+        if (pending.size() >= MAX_PENDING_PER_THREAD * parallelism) {
+          consumeFirst(pending, consumer);
         }
       }
+      while (!pending.isEmpty()) {
+        consumeFirst(pending, consumer);
+      }
     }
   }
 
-  private TreeMap<Integer, List<String>> analyzeByteCode(InputStream inputStream) throws IOException {
-    var instructions = new TreeMap<Integer, List<String>>();
-    line = 0;
+  private void consumeFirst(ArrayDeque<Map.Entry<String, Future<ClassInstructions>>> pending,
+                            BiConsumer<? super String, ? super Instruction> consumer) throws IOException {
+    var entry = pending.remove();
+    ClassInstructions instructions;
+    try {
+      instructions = entry.getValue().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    fingerprints += instructions.fingerprints(fingerprinting.window());
+    selectedFingerprints += instructions.consume(instruction -> consumer.accept(entry.getKey(), instruction), fingerprinting);
+  }
 
-    var classReader = new ClassReader(inputStream);
+  private static ClassInstructions analyzeByteCode(byte[] classFile) {
+    var instructions = new ClassInstructions();
+    var classReader = new ClassReader(classFile);
     classReader.accept(new ClassVisitor(Opcodes.ASM9) {
+        // last visited line, carried from one method to the next
+        private int line;
+
         private static String modifier(int access) {
           if (Modifier.isPublic(access)) {
             return "public";
@@ -124,53 +187,49 @@ public class ReadByteCode {
         @Override
         public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
           return new MethodVisitor(Opcodes.ASM9) {
+            private void add(int hash) {
+              instructions.add(line, hash);
+            }
+
             @Override
             public void visitInsn(int opcode) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode));
+              add(opcodeHash(opcode));
             }
 
             @Override
             public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode) + " " + name);
+              add(opcodeHash(opcode, name));
             }
 
             @Override
             public void visitIntInsn(int opcode, int operand) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode) + " " + operand);
+              add(opcodeHash(opcode, operand));
             }
 
             @Override
             public void visitVarInsn(int opcode, int varIndex) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode) + " " + varIndex);
+              add(opcodeHash(opcode, varIndex));
             }
 
             @Override
             public void visitTypeInsn(int opcode, String type) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode));
+              add(opcodeHash(opcode));
             }
 
             @Override
             public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode) + " " + descriptor);
+              add(opcodeHash(opcode, descriptor));
             }
 
             @Override
             public void visitJumpInsn(int opcode, Label label) {
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(opcode));
+              add(opcodeHash(opcode));
             }
 
             @Override
             public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
                                                Object ... bootstrapMethodArguments){
-              instructions.computeIfAbsent(line, k -> new ArrayList<>())
-                  .add(opcodeToString(Opcodes.INVOKEDYNAMIC) + " " + name);
+              add(opcodeHash(Opcodes.INVOKEDYNAMIC, name));
             }
 
             @Override
@@ -179,11 +238,74 @@ public class ReadByteCode {
             }
           };
         }
+
+        @Override
+        public void visitEnd() {
+          instructions.sortByLine();
+        }
       },0);
     return instructions;
   }
 
-  private static String opcodeToString(int opcode) {
+  /**
+   * Gets the hash of an instruction without operand.
+   * @param opcode The opcode of the instruction
+   * @return The hash of the normalized opcode
+   */
+  private static int opcodeHash(int opcode) {
+    requireKnownOpcode(opcode);
+    return OPCODE_CLASSES[opcode];
+  }
+
+  /**
+   * Gets the hash of an instruction and its operand.
+   * The hash is computed char by char so it is equal to the hash of the
+   * string "CLASS operand" without building it.
+   * @param opcode The opcode of the instruction
+   * @param operand The operand of the instruction
+   * @return The hash of the normalized opcode followed by the operand
+   */
+  private static int opcodeHash(int opcode, String operand) {
+    requireKnownOpcode(opcode);
+    var hash = OPCODE_CLASSES_WITH_OPERAND[opcode];
+    for (var i = 0; i < operand.length(); i++) {
+      hash = 31 * hash + operand.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * Gets the hash of an instruction and its operand.
+   * The hash is computed digit by digit so it is equal to the hash of the
+   * string "CLASS operand" without building it.
+   * @param opcode The opcode of the instruction
+   * @param operand The operand of the instruction
+   * @return The hash of the normalized opcode followed by the operand
+   */
+  private static int opcodeHash(int opcode, int operand) {
+    requireKnownOpcode(opcode);
+    var hash = OPCODE_CLASSES_WITH_OPERAND[opcode];
+    if (operand < 0) {
+      hash = 31 * hash + '-';
+    }
+    var value = Math.abs((long) operand);
+    var divisor = 1L;
+    while (divisor * 10 <= value) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      hash = 31 * hash + (int) ('0' + value / divisor % 10);
+    }
+    return hash;
+  }
+
+  private static void requireKnownOpcode(int opcode) {
+    if (opcode < 0 || opcode >= KNOWN_OPCODES.length || !KNOWN_OPCODES[opcode]) {
+      throw new IllegalStateException("Unexpected value: " + opcode);
+    }
+  }
+
+  private static String opcodeClass(int opcode) {
     return switch (opcode) {
       case Opcodes.NOP -> "NOP";
       case Opcodes.ACONST_NULL -> "CONST_NULL";
@@ -337,7 +459,7 @@ public class ReadByteCode {
       case Opcodes.IFNULL -> "IFNULL";
       case Opcodes.IFNONNULL -> "IFNONNULL";
       case Opcodes.I2C -> "I2C";
-      default -> throw new IllegalStateException("Unexpected value: " + opcode);
+      default -> null;
     };
   }
 
@@ -364,68 +486,162 @@ public class ReadByteCode {
    * @throws IOException if an I/O error occurs
    */
   public static List<Map.Entry<String, String>> extractSources(Path jar) throws IOException {
-    var finder = ModuleFinder.of(jar);
-    var moduleReference = finder.findAll().stream().findFirst().orElseThrow();
-
-    try (var reader = moduleReference.open()) {
-      return reader.list()
-          .filter(f -> f.contains(".java"))
-          .map(filename -> {
-            try (var inputStream = reader.open(filename).orElseThrow();
-                 var bufferedReader = new BufferedReader(new InputStreamReader(inputStream))) {
-              var content = bufferedReader.lines().collect(Collectors.joining("\n"));
-              return Map.entry(filename, content);
-            } catch (IOException e) {
-              throw new UncheckedIOException(e);
-            }
-          }).toList();
-    } catch (UncheckedIOException e) {
-      throw e.getCause();
+    try (var reader = JarReader.open(jar)) {
+      var sources = new ArrayList<Map.Entry<String, String>>();
+      for (var entry: reader.entries()) {
+        if (entry.isDirectory() || !entry.name().contains(".java")) {
+          continue;
+        }
+        var content = new String(reader.read(entry), StandardCharsets.UTF_8)
+            .lines()
+            .collect(Collectors.joining("\n"));
+        sources.add(Map.entry(entry.name(), content));
+      }
+      return sources;
     }
   }
 
-  private static void consumeInstructions(Iterator<Tuple> instructions, Consumer<? super Instruction> consumer) {
-    if (!instructions.hasNext()) {
-      return;
+  /**
+   * Computes the polynomial hash of each window of consecutive instruction hashes, the first instruction having
+   * the highest power, the hash being rolled from a window to the next one.
+   * Fewer instructions than a window make a single window.
+   * @param hashes The instruction hashes
+   * @param size The number of instruction hashes
+   * @param window The number of instructions of a fingerprint
+   * @return The fingerprints, one per window
+   */
+  static long[] fingerprints(int[] hashes, int size, int window) {
+    if (size == 0) {
+      return new long[0];
     }
-    var hash = 0;
-    var size = 5;
-    var fifo = new ArrayDeque<Instruction>(size);
-    for (int i = 0; i < size; i++) {
-      if (instructions.hasNext()) {
-        hash = addHash(fifo, instructions, hash);
+    window = Math.min(window, size);
+    var fingerprints = new long[size - window + 1];
+    // weight of the instruction leaving the window
+    var highestPower = 1L;
+    var hash = 0L;
+    for (var i = 0; i < window; i++) {
+      hash = addMod(multiplyMod(hash, BASE), value(hashes[i]));
+      if (i != 0) {
+        highestPower = multiplyMod(highestPower, BASE);
       }
     }
 
-    consumer.accept(new Instruction(peek(fifo).line(), hash));
-    while (instructions.hasNext()) {
-      hash = rollingHash(fifo, instructions, hash, consumer);
+    fingerprints[0] = hash;
+    for (var i = window; i < size; i++) {
+      hash = addMod(hash, MODULUS - multiplyMod(value(hashes[i - window]), highestPower));
+      hash = addMod(multiplyMod(hash, BASE), value(hashes[i]));
+      fingerprints[i - window + 1] = hash;
     }
+    return fingerprints;
   }
 
-  private static Instruction peek(ArrayDeque<Instruction> fifo) {
-    return fifo.peek();
+  // spreads the 32 bits of an instruction hash over the 61 bits of the modulus
+  static long value(int hash) {
+    var value = (hash & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L;
+    return ((value ^ (value >>> 29)) & MODULUS) % MODULUS;
   }
 
-  private static int addHash(ArrayDeque<Instruction> fifo, Iterator<ReadByteCode.Tuple> iterator, int hash) {
-    var nextTuple = getNextTuple(iterator);
-    hash += nextTuple.hash();
-    fifo.add(nextTuple);
-    return hash;
+  private static long addMod(long a, long b) {
+    var sum = a + b;
+    return sum >= MODULUS ? sum - MODULUS : sum;
   }
 
-  private static int rollingHash(ArrayDeque<Instruction> fifo, Iterator<ReadByteCode.Tuple> iterator,
-                                 int hash, Consumer<? super Instruction> consumer) {
-    var lastElement = fifo.remove();
-    hash -= lastElement.hash();
-    hash = addHash(fifo, iterator, hash);
-    consumer.accept(new Instruction(peek(fifo).line(), hash));
-    return hash;
+  private static long multiplyMod(long a, long b) {
+    // a * b = high * 2^64 + low, and 2^61 = 1 modulo 2^61 - 1
+    var high = Math.multiplyHigh(a, b);
+    var low = a * b;
+    var result = (low & MODULUS) + ((low >>> 61) | (high << 3));
+    result = (result & MODULUS) + (result >>> 61);
+    return result >= MODULUS ? result - MODULUS : result;
   }
 
-  private static Instruction getNextTuple(Iterator<ReadByteCode.Tuple> iterator){
-    var nextElement = iterator.next();
-    var nextElementHash = nextElement.opcode().hashCode();
-    return new Instruction(nextElement.line(), nextElementHash);
+  /**
+   * Instruction hashes of the class being visited, ordered by line once the class ends.
+   * An instance is filled by one analysis thread then consumed by another one,
+   * the future that carries it ensures the visibility of its content.
+   */
+  private static final class ClassInstructions {
+    private int[] lines = new int[16];
+    private int[] hashes = new int[16];
+    private int size;
+
+    private void add(int line, int hash) {
+      if (size == lines.length) {
+        lines = Arrays.copyOf(lines, size * 2);
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+      lines[size] = line;
+      hashes[size] = hash;
+      size++;
+    }
+
+    private void sortByLine() {
+      // the visit order is kept between instructions of the same line
+      var keys = new long[size];
+      for (var i = 0; i < size; i++) {
+        keys[i] = ((long) lines[i] << 32) | i;
+      }
+      Arrays.sort(keys);
+      var sortedHashes = new int[size];
+      for (var i = 0; i < size; i++) {
+        lines[i] = (int) (keys[i] >>> 32);
+        sortedHashes[i] = hashes[(int) keys[i]];
+      }
+      hashes = sortedHashes;
+    }
+
+    private int fingerprints(int window) {
+      return size == 0 ? 0 : size - Math.min(window, size) + 1;
+    }
+
+    /**
+     * Computes the fingerprints of the instructions and gives the selected ones to the consumer.
+     * @return The number of selected fingerprints
+     */
+    private int consume(Consumer<? super Instruction> consumer, Fingerprinting fingerprinting) {
+      if (size == 0) {
+        return 0;
+      }
+      var fingerprints = ReadByteCode.fingerprints(hashes, size, fingerprinting.window());
+      if (fingerprinting.winnowingWindow() == 1) {
+        for (var i = 0; i < fingerprints.length; i++) {
+          consumer.accept(new Instruction(lines[i], fingerprints[i]));
+        }
+        return fingerprints.length;
+      }
+      return winnow(fingerprints, fingerprinting.winnowingWindow(),
+          i -> consumer.accept(new Instruction(lines[i], fingerprints[i])));
+    }
+
+    /**
+     * Selects the rightmost minimal fingerprint of each window, once per fingerprint.
+     * A class shorter than a window is a single window.
+     * @return The number of selected fingerprints
+     */
+    private static int winnow(long[] fingerprints, int winnowingWindow, IntConsumer consumer) {
+      // indexes of increasing fingerprints of the current window, its minimum first
+      var candidates = new int[fingerprints.length];
+      int head = 0, tail = 0;
+      var selected = -1;
+      var count = 0;
+      for (var i = 0; i < fingerprints.length; i++) {
+        while (tail > head && fingerprints[candidates[tail - 1]] >= fingerprints[i]) {
+          tail--;
+        }
+        candidates[tail++] = i;
+        if (candidates[head] <= i - winnowingWindow) {
+          head++;
+        }
+        if (i >= winnowingWindow - 1 || i == fingerprints.length - 1) {
+          var minimum = candidates[head];
+          if (minimum != selected) {
+            selected = minimum;
+            consumer.accept(minimum);
+            count++;
+          }
+        }
+      }
+      return count;
+    }
   }
 }
@@ -1,10 +1,18 @@
 package fr.uge.clonewar;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 public class Utils {
+  // configured once, a mapper is thread safe and costly to create
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final ObjectWriter INDENTED_WRITER = MAPPER.writer(SerializationFeature.INDENT_OUTPUT);
 
   /**
    * Convert an Object to a JSON representation as a String.
@@ -13,8 +21,27 @@ public class Utils {
    * @throws JsonProcessingException if an error occur during the serialization
    */
   public static String toJson(Object object) throws JsonProcessingException {
-    var mapper = new ObjectMapper();
-    return mapper.writeValueAsString(object);
+    return MAPPER.writeValueAsString(object);
+  }
+
+  /**
+   * Convert an Object to a JSON representation encoded in UTF-8.
+   * @param object The object to serialize
+   * @return The JSON
+   * @throws JsonProcessingException if an error occur during the serialization
+   */
+  public static byte[] toJsonBytes(Object object) throws JsonProcessingException {
+    return MAPPER.writeValueAsBytes(object);
+  }
+
+  /**
+   * Creates a generator writing JSON to a stream, objects written with it are serialized like toJson does.
+   * @param output The stream, closed with the generator
+   * @return The generator
+   * @throws IOException if an I/O error occurs
+   */
+  public static JsonGenerator jsonGenerator(OutputStream output) throws IOException {
+    return MAPPER.createGenerator(output);
   }
 
   /**
@@ -24,8 +51,6 @@ public class Utils {
    * @throws JsonProcessingException if an error occur during the serialization
    */
   public static String toJsonIndented(Object object) throws JsonProcessingException {
-    var mapper = new ObjectMapper();
-    mapper.enable(SerializationFeature.INDENT_OUTPUT);
-    return mapper.writeValueAsString(object);
+    return INDENTED_WRITER.writeValueAsString(object);
   }
 }
@@ -0,0 +1,256 @@
+package fr.uge.clonewar.backend;
+
+import fr.uge.clonewar.Artefact;
+import fr.uge.clonewar.CloneDetectors;
+import fr.uge.clonewar.backend.database.Database;
+import fr.uge.clonewar.backend.database.JobTable.JobRow;
+import fr.uge.clonewar.backend.model.Job;
+import io.helidon.common.configurable.ThreadPoolSupplier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents the queue of the artefacts waiting to be indexed.
+ * Jobs are run in the background by a fixed number of workers, at most capacity jobs can wait
+ * for a worker, further submissions are rejected until one of them is done.
+ * The state of the jobs is stored in the database, queued jobs are resumed on restart,
+ * the uploaded files of a job are deleted once it is done or failed.
+ * Once indexed, an artefact is compared to every other indexed artefact, so reading
+ * clones never triggers a computation.
+ */
+public final class AnalysisQueue implements Closeable {
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final Database db;
+  private final FileStorage storage;
+  private final Semaphore slots;
+  private final ExecutorService executor;
+  // background work outside of the jobs, it does not take a slot of the queue
+  private final ExecutorService backfillExecutor;
+  private final Runnable onUpdate;
+
+  /**
+   * Creates the queue and resumes the queued jobs of the database.
+   * Clones of artefacts indexed before clones were computed at indexing time are computed by a background thread,
+   * after the hash index, the LSH buckets and the segments of the artefacts indexed before they were stored.
+   * @param db The database
+   * @param storage The storage of the uploaded files
+   * @param workers The number of jobs run at the same time
+   * @param capacity The number of jobs that can wait for a worker
+   * @param onUpdate Called each time artefacts or clones are written to the database
+   * @throws IllegalArgumentException if workers or capacity is lower than 1
+   */
+  public AnalysisQueue(Database db, FileStorage storage, int workers, int capacity, Runnable onUpdate) {
+    Objects.requireNonNull(db);
+    Objects.requireNonNull(storage);
+    Objects.requireNonNull(onUpdate);
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers < 1");
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity < 1");
+    }
+    this.db = db;
+    this.storage = storage;
+    this.onUpdate = onUpdate;
+    slots = new Semaphore(workers + capacity);
+    executor = ThreadPoolSupplier.builder()
+        .name("analysis-thread-pool")
+        .threadNamePrefix("analysis-")
+        .corePoolSize(workers)
+        .maxPoolSize(workers)
+        .queueCapacity(capacity)
+        .build()
+        .get();
+    backfillExecutor = ThreadPoolSupplier.builder()
+        .name("backfill-thread-pool")
+        .threadNamePrefix("backfill-")
+        .corePoolSize(1)
+        .maxPoolSize(1)
+        .build()
+        .get();
+    var unhashed = db.hashIndexTable().getMissing();
+    var unsketched = db.lshTable().enabled() ? db.lshTable().getMissing() : List.<Integer>of();
+    var unsegmented = db.instructionTable().segmentsEnabled() ? getUnsegmented() : List.<Integer>of();
+    var pending = db.artefactTable().getClonesPending();
+    if (!unhashed.isEmpty() || !unsketched.isEmpty() || !unsegmented.isEmpty() || !pending.isEmpty()) {
+      backfillExecutor.execute(() -> {
+        unhashed.forEach(this::indexHashes);
+        unsketched.forEach(this::sketchArtefact);
+        unsegmented.forEach(db.instructionTable()::writeSegment);
+        pending.forEach(this::computePendingClones);
+      });
+    }
+    resume();
+  }
+
+  // artefacts indexed before segments were enabled
+  private List<Integer> getUnsegmented() {
+    return db.artefactTable().getIndexed().stream()
+        .map(fr.uge.clonewar.backend.model.Artefact::id)
+        .filter(id -> !db.instructionTable().hasSegment(id))
+        .toList();
+  }
+
+  private void indexHashes(int artefactId) {
+    try {
+      db.hashIndexTable().index(artefactId);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void sketchArtefact(int artefactId) {
+    try {
+      CloneDetectors.sketchArtefact(db, artefactId);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void computePendingClones(fr.uge.clonewar.backend.model.Artefact artefact) {
+    try {
+      computeClones(artefact);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void computeClones(fr.uge.clonewar.backend.model.Artefact artefact) {
+    // the artefact is marked indexed before this read, of two artefacts indexed at the same time
+    // at least one sees the other, pairs seen by both are computed once
+    System.out.println("Computing clones ... ");
+    var others = db.artefactTable().getComparable(artefact.id());
+    CloneDetectors.computeMissingClones(db, artefact, others);
+    db.artefactTable().markClonesComputed(artefact.id());
+    onUpdate.run();
+  }
+
+  private void resume() {
+    // a running job was interrupted half way, its artefact is incomplete
+    db.jobTable().failAll(Job.Status.RUNNING, "Interrupted by a server restart");
+    db.jobTable().getQueued().forEach((id, row) -> {
+      var artefact = new Artefact(Path.of(row.mainJar()), Path.of(row.sourceJar()));
+      if (!Files.exists(artefact.main()) || !Files.exists(artefact.source())) {
+        fail(id, artefact, "Uploaded files are no longer available");
+        return;
+      }
+      if (!slots.tryAcquire()) {
+        fail(id, artefact, "Analysis queue is full");
+        return;
+      }
+      System.out.println("Resuming job " + id);
+      try {
+        execute(id, artefact);
+      } catch (RejectedExecutionException e) {
+        // already marked failed
+        System.err.println("Job " + id + " not resumed: " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Queues the indexing of an artefact.
+   * The uploaded files are deleted if the job can not be queued.
+   * @param artefact The uploaded artefact
+   * @return The queued job
+   * @throws RejectedExecutionException if the queue is full
+   */
+  public Job submit(Artefact artefact) {
+    Objects.requireNonNull(artefact);
+    if (!slots.tryAcquire()) {
+      deleteUpload(artefact);
+      throw new RejectedExecutionException("Analysis queue is full");
+    }
+    int id;
+    try {
+      var row = new JobRow(artefact.main().toString(), artefact.source().toString(), System.currentTimeMillis());
+      id = db.jobTable().insert(row);
+    } catch (RuntimeException e) {
+      slots.release();
+      deleteUpload(artefact);
+      throw e;
+    }
+    execute(id, artefact);
+    return new Job(id, Job.Status.QUEUED, null, null, null, null);
+  }
+
+  private void execute(int id, Artefact artefact) {
+    try {
+      executor.execute(() -> run(id, artefact));
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      fail(id, artefact, "Analysis queue is closed");
+      throw e;
+    }
+  }
+
+  private void run(int id, Artefact artefact) {
+    try {
+      db.jobTable().updateStatus(id, Job.Status.RUNNING);
+      System.out.println("Indexing artefact ... ");
+      var indexed = CloneDetectors.index(db, artefact);
+      onUpdate.run();
+      computeClones(indexed.artefact());
+      db.jobTable().complete(id, indexed.artefact().id(), indexed.fingerprints(), indexed.instructions());
+      deleteUpload(artefact);
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+      fail(id, artefact, Objects.requireNonNullElse(e.getMessage(), e.getClass().getName()));
+    } finally {
+      slots.release();
+    }
+  }
+
+  private void fail(int id, Artefact artefact, String reason) {
+    db.jobTable().fail(id, reason);
+    deleteUpload(artefact);
+  }
+
+  private void deleteUpload(Artefact artefact) {
+    try {
+      storage.delete(artefact.main());
+      storage.delete(artefact.source());
+    } catch (IOException | IllegalStateException e) {
+      System.err.println("Uploaded files not deleted: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Gets a job.
+   * @param id The id of the job
+   * @return The job, or an empty optional if there is no such job
+   */
+  public Optional<Job> get(int id) {
+    return db.jobTable().get(id);
+  }
+
+  /**
+   * Stops the workers and the background thread, interrupting running jobs.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    backfillExecutor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("Analysis workers did not stop in time");
+      }
+      if (!backfillExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("Backfill thread did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -2,39 +2,58 @@ package fr.uge.clonewar.backend;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import fr.uge.clonewar.Artefact;
-import fr.uge.clonewar.CloneDetectors;
+import fr.uge.clonewar.FileHashes;
 import fr.uge.clonewar.Utils;
 import fr.uge.clonewar.backend.database.Database;
+import fr.uge.clonewar.backend.database.DiffTable;
 import fr.uge.clonewar.backend.model.Clones;
+import fr.uge.clonewar.backend.model.SimilarFiles;
 import io.helidon.common.configurable.ThreadPoolSupplier;
 import io.helidon.common.http.DataChunk;
 import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
 import io.helidon.common.reactive.IoMulti;
+import io.helidon.common.reactive.Multi;
 import io.helidon.common.reactive.Single;
 import io.helidon.media.multipart.ReadableBodyPart;
+import io.helidon.webserver.BadRequestException;
+import io.helidon.webserver.HttpException;
+import io.helidon.webserver.NotFoundException;
 import io.helidon.webserver.Routing;
 import io.helidon.webserver.ServerRequest;
 import io.helidon.webserver.ServerResponse;
 import io.helidon.webserver.Service;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 
 public final class ApiService implements Service {
+  private static final String RETRY_AFTER_SECONDS = "5";
+  private static final int MAX_PAGE_SIZE = 1_000;
   private final Database db;
   private final FileStorage storage;
+  private final AnalysisQueue analysisQueue;
+  private final ResponseCache responseCache;
   private final ExecutorService executor = ThreadPoolSupplier.create("multipart-thread-pool").get();
+  private final ExecutorService streamExecutor = ThreadPoolSupplier.create("stream-thread-pool").get();
 
-  public ApiService(Database db, FileStorage storage) {
+  public ApiService(Database db, FileStorage storage, AnalysisQueue analysisQueue, ResponseCache responseCache) {
     Objects.requireNonNull(db);
     Objects.requireNonNull(storage);
+    Objects.requireNonNull(analysisQueue);
+    Objects.requireNonNull(responseCache);
     this.db = db;
     this.storage = storage;
+    this.analysisQueue = analysisQueue;
+    this.responseCache = responseCache;
   }
 
   /**
@@ -45,9 +64,12 @@ public final class ApiService implements Service {
   public void update(Routing.Rules rules) {
     rules.get("/", (req, res) -> res.send("Hello World"))
         .post("/analyze", (req, res) -> interceptError(req, res, this::analyze))
+        .get("/jobs/{id}", (req, res) -> interceptError(req, res, this::job))
         .get("/artefacts", (req, res) -> interceptError(req, res, this::listArtefacts))
         .get("/clones/{id}", (req, res) -> interceptError(req, res, this::listClones))
-        .get("/diff/{reference}/{clone}",  (req, res) -> interceptError(req, res, this::diff));
+        .get("/diff/{reference}/{clone}",  (req, res) -> interceptError(req, res, this::diff))
+        .get("/files/{reference}/{clone}", (req, res) -> interceptError(req, res, this::listSimilarFiles))
+        .get("/stats/instruction-cache", (req, res) -> interceptError(req, res, this::instructionCacheStats));
   }
 
   @FunctionalInterface
@@ -58,6 +80,8 @@ public final class ApiService implements Service {
   private static void interceptError(ServerRequest request, ServerResponse response, Handler consumer) {
     try {
       consumer.handle(request, response);
+    } catch (HttpException e) {
+      response.status(e.status()).send(e.getMessage());
     } catch (Throwable e) {
       e.printStackTrace();
       response.send(e);
@@ -71,69 +95,186 @@ public final class ApiService implements Service {
         })
         .thenAccept(artefact -> {
           try {
-            System.out.println("Indexing artefact ... ");
-            var indexedArtefact = CloneDetectors.indexArtefact(db, artefact);
+            var job = analysisQueue.submit(artefact);
 
-            var json = Utils.toJson(indexedArtefact);
-            response.status(Http.Status.OK_200).send(json);
+            var json = Utils.toJson(job);
+            response.status(Http.Status.ACCEPTED_202).send(json);
+          } catch (RejectedExecutionException e) {
+            response.status(Http.Status.SERVICE_UNAVAILABLE_503)
+                .addHeader(Http.Header.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .send(e.getMessage());
           } catch (IOException e) {
             throw new UncheckedIOException(e);
           }
         });
   }
 
+  private void job(ServerRequest request, ServerResponse response) throws JsonProcessingException {
+    var id = Integer.parseInt(request.path().param("id"));
+
+    var job = analysisQueue.get(id);
+    if (job.isEmpty()) {
+      response.status(Http.Status.NOT_FOUND_404).send();
+      return;
+    }
+    var json = Utils.toJson(job.orElseThrow());
+    response.status(Http.Status.OK_200).send(json);
+  }
+
+  private void instructionCacheStats(ServerRequest request, ServerResponse response) throws JsonProcessingException {
+    // counters change with every comparison, they are not cached
+    var json = Utils.toJson(db.instructionTable().cacheStats());
+    response.status(Http.Status.OK_200).send(json);
+  }
+
   private Single<Artefact> downloadArtefact(ServerRequest request) {
     System.out.println("Downloading ... ");
+    // a part is written while the next ones are read, the artefact is complete once every write is done
     return request.content().asStream(ReadableBodyPart.class)
         .map(part -> {
           var path = storage.create(part.filename());
-          part.content().map(DataChunk::data)
+          var written = part.content().map(DataChunk::data)
               .flatMapIterable(Arrays::asList)
               .to(IoMulti.writeToFile(path)
                   .executor(executor)
                   .build());
-          return path;
+          return written.toStage(true).thenApply(__ -> path).toCompletableFuture();
         }).collectList()
+        .flatMapSingle(writes -> Single.create(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new))
+            .thenApply(__ -> writes.stream().map(CompletableFuture::join).toList())))
         .map(files -> new Artefact(files.get(0), files.get(1)));
   }
 
-  private void listArtefacts(ServerRequest request, ServerResponse response) throws IOException {
-    var artefacts = db.artefactTable().getAll();
-    var json = Utils.toJson(artefacts);
-    response.status(Http.Status.OK_200).send(json);
+  private static OptionalInt queryInt(ServerRequest request, String name) {
+    var value = request.queryParams().first(name);
+    if (value.isEmpty()) {
+      return OptionalInt.empty();
+    }
+    try {
+      return OptionalInt.of(Integer.parseInt(value.orElseThrow()));
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid " + name + ": " + value.orElseThrow());
+    }
+  }
+
+  private static int limit(ServerRequest request) {
+    var limit = queryInt(request, "limit");
+    if (limit.isPresent() && (limit.getAsInt() < 1 || limit.getAsInt() > MAX_PAGE_SIZE)) {
+      throw new BadRequestException("limit must be between 1 and " + MAX_PAGE_SIZE);
+    }
+    return limit.orElse(-1);
   }
 
-  private void listClones(ServerRequest request, ServerResponse response) throws IOException {
+  private void listArtefacts(ServerRequest request, ServerResponse response) throws Exception {
+    var limit = limit(request);
+    var after = queryInt(request, "after").orElse(0);
+    var prefix = request.queryParams().first("prefix").orElse("");
+    if (limit == -1 && after == 0 && prefix.isEmpty()) {
+      sendCached(request, response, "artefacts", () -> Utils.toJsonBytes(db.artefactTable().getIndexed()));
+      return;
+    }
+    // the client sends the id of the last artefact to get the next page, pages of a prefix are in jar name order
+    sendCached(request, response, "artefacts?limit=" + limit + "&after=" + after + "&prefix=" + prefix,
+        () -> Utils.toJsonBytes(db.artefactTable().getPage(after, limit, prefix)));
+  }
+
+  private void listClones(ServerRequest request, ServerResponse response) throws Exception {
     var id = Integer.parseInt(request.path().param("id"));
+    var limit = limit(request);
+    var after = queryInt(request, "after");
+    var min = queryInt(request, "min").orElse(0);
+    if (after.isPresent() && !db.cloneTable().contains(id, after.getAsInt())) {
+      throw new BadRequestException("Unknown clone " + after.getAsInt() + " of artefact " + id);
+    }
 
-    var availableClones = db.artefactTable().getAll(id);
-    var reference = db.artefactTable().get(id);
-    var alreadyComputedClones = db.cloneTable().getAll(id);
-
-    var toCompute = availableClones.stream()
-        .filter(artefact -> alreadyComputedClones.stream().noneMatch(c -> c.artefact().id() == artefact.id()))
-        .toList();
-
-    List<Clones.Clone> clones;
-    if (toCompute.isEmpty()) {
-      clones = alreadyComputedClones;
-    } else {
-      System.out.println("Computing clones ... ");
-      CloneDetectors.computeClones(db, reference, toCompute);
-      clones = db.cloneTable().getAll(id); // refresh clones
+    // clones are computed when an artefact is indexed
+    if (limit == -1 && after.isEmpty() && min == 0) {
+      sendCached(request, response, "clones/" + id, () -> {
+        var reference = db.artefactTable().get(id);
+        var clones = db.cloneTable().getAll(id);
+        return Utils.toJsonBytes(new Clones(reference, clones));
+      });
+      return;
     }
+    // pages are read by percentage, the client sends the id of the last clone to get the next page
+    sendCached(request, response, "clones/" + id + "?limit=" + limit + "&after=" + (after.isPresent() ? after.getAsInt() : "") + "&min=" + min, () -> {
+      var reference = db.artefactTable().get(id);
+      var clones = db.cloneTable().getPage(id, after, min, limit);
+      return Utils.toJsonBytes(new Clones(reference, clones));
+    });
+  }
 
-    var json = Utils.toJson(new Clones(reference, clones));
-    response.status(Http.Status.OK_200).send(json);
+  private void listSimilarFiles(ServerRequest request, ServerResponse response) throws Exception {
+    var referenceId = Integer.parseInt(request.path().param("reference"));
+    var cloneId = Integer.parseInt(request.path().param("clone"));
+    var limit = limit(request);
+    // an empty list means that no file is similar, not that the pair was not compared
+    if (!db.fileSimilarityTable().isComputed(referenceId, cloneId)) {
+      throw new NotFoundException("File similarities of " + referenceId + " and " + cloneId + " are not computed");
+    }
+    // pairs of files are computed with the clones, the limits of the comparison are sent with them
+    sendCached(request, response, "files/" + referenceId + "/" + cloneId + "?limit=" + limit,
+        () -> Utils.toJsonBytes(new SimilarFiles(FileHashes.MAX_FILES_PER_HASH, FileHashes.MAX_MATCHES_PER_FILE,
+            db.fileSimilarityTable().getMostSimilar(referenceId, cloneId, limit))));
   }
 
-  private void diff(ServerRequest request, ServerResponse response) throws JsonProcessingException {
+  private void diff(ServerRequest request, ServerResponse response) {
     var referenceId = Integer.parseInt(request.path().param("reference"));
     var cloneId = Integer.parseInt(request.path().param("clone"));
+    var limit = limit(request);
+    var afterReference = request.queryParams().first("afterReference");
+    var afterFile = request.queryParams().first("afterFile");
+    if (afterReference.isPresent() != afterFile.isPresent()) {
+      throw new BadRequestException("afterReference and afterFile must be given together");
+    }
+    // the client sends the names of the last pair of files to get the next page
+    var after = afterReference.map(reference -> new DiffTable.FileCursor(reference, afterFile.orElseThrow()));
 
-    var diff = db.diffTable().getDiff(referenceId, cloneId);
-    var json = Utils.toJson(diff);
-    response.status(Http.Status.OK_200).send(json);
+    // diffs can be huge, they are streamed file by file instead of being cached
+    var output = IoMulti.outputStreamMulti();
+    // completed once the body is written, a failure aborts the response instead of ending a truncated body
+    var end = new CompletableFuture<DataChunk>();
+    response.headers().contentType(MediaType.APPLICATION_JSON);
+    response.status(Http.Status.OK_200).send(Multi.concat(output.map(DataChunk::create), Single.create(end, true)));
+    streamExecutor.execute(() -> {
+      try (var generator = Utils.jsonGenerator(output)) {
+        generator.writeStartArray();
+        db.diffTable().forEachFileDiff(referenceId, cloneId, after, limit, fileDiff -> {
+          try {
+            generator.writeObject(fileDiff);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        generator.writeEndArray();
+        end.complete(null);
+      } catch (IOException | RuntimeException e) {
+        // the status is already sent
+        e.printStackTrace();
+        end.completeExceptionally(e);
+      } finally {
+        closeQuietly(output);
+      }
+    });
+  }
+
+  private static void closeQuietly(OutputStream output) {
+    try {
+      output.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void sendCached(ServerRequest request, ServerResponse response, String key, ResponseCache.Loader loader) throws Exception {
+    var entry = responseCache.get(key, loader);
+    response.addHeader(Http.Header.ETAG, entry.etag());
+    if (entry.matches(request.headers().all(Http.Header.IF_NONE_MATCH))) {
+      response.status(Http.Status.NOT_MODIFIED_304).send();
+      return;
+    }
+    response.headers().contentType(MediaType.APPLICATION_JSON);
+    response.status(Http.Status.OK_200).send(entry.body());
   }
 
 }
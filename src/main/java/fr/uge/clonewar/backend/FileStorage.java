@@ -6,26 +6,48 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.Objects;
 
 import io.helidon.webserver.BadRequestException;
 
 
 /**
- * Represents a temporary directory.
+ * Represents the directory of the uploaded files.
+ * Each created file has its own sub directory, files with the same name can be stored at the same time.
+ * A temporary storage is deleted when it is closed, a persistent one keeps the files that were not deleted.
  */
 public final class FileStorage implements Closeable {
 
   private final Path storageDir;
-  private boolean cleaned;
-
+  private final boolean temporary;
+  private volatile boolean cleaned;
 
+  /**
+   * Creates a temporary storage.
+   */
   public FileStorage() {
     try {
       storageDir = Files.createTempDirectory("temp_dir");
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+    temporary = true;
+  }
+
+  /**
+   * Creates a persistent storage, files are kept across restarts until they are deleted.
+   * @param storageDir The directory, created if it does not exist
+   * @throws UncheckedIOException if the directory can not be created
+   */
+  public FileStorage(Path storageDir) {
+    Objects.requireNonNull(storageDir);
+    try {
+      this.storageDir = Files.createDirectories(storageDir).toAbsolutePath();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    temporary = false;
   }
 
   /**
@@ -46,20 +68,20 @@ public final class FileStorage implements Closeable {
   public Path create(String filename) {
     Objects.requireNonNull(filename);
     requireOpen();
-    Path file = storageDir.resolve(filename);
-    if (!file.getParent().equals(storageDir)) {
+    var name = storageDir.resolve(filename);
+    if (!name.getParent().equals(storageDir)) {
       throw new BadRequestException("Invalid file name");
     }
     try {
-      Files.createFile(file);
+      var directory = Files.createTempDirectory(storageDir, "upload-");
+      return Files.createFile(directory.resolve(name.getFileName()));
     } catch (IOException ex) {
       throw new UncheckedIOException(ex);
     }
-    return file;
   }
 
   /**
-   * Delete a file.
+   * Delete a file created by this storage, and its sub directory.
    * @param path The file to delete
    * @throws IOException if an I/O error occurs
    * @throws IllegalStateException if the storage has already been clean
@@ -67,12 +89,16 @@ public final class FileStorage implements Closeable {
   public void delete(Path path) throws IOException {
     Objects.requireNonNull(path);
     requireOpen();
-    Files.delete(path);
+    Files.deleteIfExists(path);
+    var directory = path.getParent();
+    if (directory != null && storageDir.equals(directory.getParent())) {
+      Files.deleteIfExists(directory);
+    }
   }
 
   private void deleteFiles() throws IOException {
-    try (var dir = Files.list(storageDir)) {
-      dir.forEach(f -> {
+    try (var dir = Files.walk(storageDir)) {
+      dir.sorted(Comparator.reverseOrder()).filter(f -> !f.equals(storageDir)).forEach(f -> {
         try {
           Files.delete(f);
         } catch (IOException e) {
@@ -91,7 +117,7 @@ public final class FileStorage implements Closeable {
   }
 
   /**
-   * Close the storage and delete all created files.
+   * Close the storage, a temporary storage deletes all created files.
    * @throws IllegalStateException if the storage has already been clean
    * @throws UncheckedIOException if an I/O error occurs
    */
@@ -99,6 +125,9 @@ public final class FileStorage implements Closeable {
   public void close() {
     requireOpen();
     cleaned = true;
+    if (!temporary) {
+      return;
+    }
     try {
       deleteFiles();
       Files.delete(storageDir);
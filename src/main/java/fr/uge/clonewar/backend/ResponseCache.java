@@ -0,0 +1,125 @@
+package fr.uge.clonewar.backend;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the serialized bodies of the read endpoints, up to a number of bytes.
+ * Every body has an entity tag derived from its content, so that clients can revalidate it.
+ * The whole cache is invalidated when the database changes.
+ */
+public final class ResponseCache {
+  /**
+   * Represents a cached response body.
+   * @param body The serialized body
+   * @param etag The quoted entity tag of the body
+   */
+  public record Entry(byte[] body, String etag) {
+    public Entry {
+      Objects.requireNonNull(body);
+      Objects.requireNonNull(etag);
+    }
+
+    /**
+     * Tells if a client already has this body.
+     * @param ifNoneMatch The values of the If-None-Match header
+     * @return true if one of the entity tags matches this body
+     */
+    public boolean matches(List<String> ifNoneMatch) {
+      Objects.requireNonNull(ifNoneMatch);
+      return ifNoneMatch.stream()
+          .flatMap(value -> List.of(value.split(",")).stream())
+          .map(String::strip)
+          .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+          .anyMatch(tag -> tag.equals("*") || tag.equals(etag));
+    }
+  }
+
+  /**
+   * Computes a body when it is not cached.
+   */
+  @FunctionalInterface
+  public interface Loader {
+    byte[] load() throws Exception;
+  }
+
+  private static final int ETAG_BYTES = 16;
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private long generation;
+
+  /**
+   * Creates an empty cache.
+   * @param maxBytes The maximum size of the cached bodies, 0 disables the cache
+   * @throws IllegalArgumentException if maxBytes is negative
+   */
+  public ResponseCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes < 0");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets the cached body of a key, computing it if it is not cached.
+   * A body computed while the cache is invalidated is returned but not cached.
+   * @param key The endpoint and its parameters
+   * @param loader The computation of the body
+   * @return The body and its entity tag
+   * @throws Exception if the computation fails
+   */
+  public Entry get(String key, Loader loader) throws Exception {
+    Objects.requireNonNull(key);
+    Objects.requireNonNull(loader);
+    long loadedGeneration;
+    synchronized (this) {
+      var entry = entries.get(key);
+      if (entry != null) {
+        return entry;
+      }
+      loadedGeneration = generation;
+    }
+
+    var body = loader.load();
+    var entry = new Entry(body, etag(body));
+    synchronized (this) {
+      if (loadedGeneration == generation && body.length <= maxBytes) {
+        var previous = entries.put(key, entry);
+        if (previous != null) {
+          bytes -= previous.body().length;
+        }
+        bytes += body.length;
+        var iterator = entries.values().iterator();
+        while (bytes > maxBytes) {
+          bytes -= iterator.next().body().length;
+          iterator.remove();
+        }
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Removes every cached body, to be called when the database changes.
+   */
+  public synchronized void invalidateAll() {
+    generation++;
+    entries.clear();
+    bytes = 0;
+  }
+
+  private static String etag(byte[] body) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256").digest(body);
+      return '"' + HexFormat.of().formatHex(digest, 0, ETAG_BYTES) + '"';
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // SHA-256 is available on every JVM
+    }
+  }
+}
@@ -3,7 +3,6 @@ package fr.uge.clonewar.backend;
 import fr.uge.clonewar.backend.database.Database;
 import io.helidon.common.reactive.Single;
 import io.helidon.config.Config;
-import io.helidon.dbclient.DbClient;
 import io.helidon.media.jsonp.JsonpSupport;
 import io.helidon.media.multipart.MultiPartSupport;
 import io.helidon.openapi.OpenAPISupport;
@@ -11,9 +10,13 @@ import io.helidon.webserver.Routing;
 import io.helidon.webserver.WebServer;
 import io.helidon.webserver.staticcontent.StaticContentSupport;
 
+import java.nio.file.Path;
 import java.util.Objects;
 
 public class Server {
+  private static final int DEFAULT_WORKERS = 1;
+  private static final int DEFAULT_QUEUE_CAPACITY = 16;
+  private static final long DEFAULT_RESPONSE_CACHE_SIZE = 32L * 1024 * 1024;
 
   /**
    * Start the server.
@@ -25,9 +28,20 @@ public class Server {
     Objects.requireNonNull(db);
     Objects.requireNonNull(config);
 
-    var storage = new FileStorage();
+    var jobsConfig = config.get("jobs");
+    // uploads of queued jobs must survive a restart, a temporary storage is deleted when the server stops
+    var storage = jobsConfig.get("upload-directory").asString().asOptional()
+        .filter(directory -> !directory.isEmpty())
+        .map(directory -> new FileStorage(Path.of(directory)))
+        .orElseGet(FileStorage::new);
+    var responseCache = new ResponseCache(
+        config.get("api").get("response-cache-size").asLong().orElse(DEFAULT_RESPONSE_CACHE_SIZE));
+    var analysisQueue = new AnalysisQueue(db, storage,
+        jobsConfig.get("workers").asInt().orElse(DEFAULT_WORKERS),
+        jobsConfig.get("capacity").asInt().orElse(DEFAULT_QUEUE_CAPACITY),
+        responseCache::invalidateAll);
 
-    var server = WebServer.builder(createRouting(db, storage))
+    var server = WebServer.builder(createRouting(db, storage, analysisQueue, responseCache))
         .config(config.get("server"))
         .addMediaSupport(MultiPartSupport.create())
         .addMediaSupport(JsonpSupport.create())
@@ -36,7 +50,10 @@ public class Server {
 
     server.thenAccept(ws -> {
           System.out.println("Server is up: http://localhost:" + ws.port());
-          ws.whenShutdown().thenRun(storage::close);
+          ws.whenShutdown().thenRun(() -> {
+            analysisQueue.close();
+            storage.close();
+          });
         })
         .exceptionally(t -> {
           System.err.println("Startup failed: " + t.getMessage());
@@ -53,19 +70,20 @@ public class Server {
    */
   public static Single<WebServer> startServer(Config config) {
     Objects.requireNonNull(config);
-    var dbClient = DbClient.create(config.get("db"));
-    var db = new Database(dbClient);
+    var dbConfig = config.get("db");
+    var db = Database.create(dbConfig);
     return startServer(db, config);
   }
 
-  private static Routing createRouting(Database db, FileStorage storage) {
+  private static Routing createRouting(Database db, FileStorage storage, AnalysisQueue analysisQueue,
+                                       ResponseCache responseCache) {
     var staticContent = StaticContentSupport.builder("/dist")
         .welcomeFileName("index.html")
         .build();
 
     return Routing.builder()
         .register(OpenAPISupport.create())
-        .register("/api", new ApiService(db, storage))
+        .register("/api", new ApiService(db, storage, analysisQueue, responseCache))
         .register("/", staticContent) // frontend/dist
         .build();
   }
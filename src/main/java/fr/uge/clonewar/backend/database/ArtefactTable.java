@@ -5,6 +5,7 @@ import io.helidon.dbclient.DbClient;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 
 /**
  * Represents an Artefact entity of the database.
@@ -14,22 +15,37 @@ public class ArtefactTable {
   /**
    * Represents a Row of the Artefact entity.
    * @param jarName The artefact's name
+   * @param insertionDate The insertion date
+   * @param fingerprint The scheme of the fingerprints of the artefact's instructions
    */
-  public record ArtefactRow(String jarName, long insertionDate) {
+  public record ArtefactRow(String jarName, long insertionDate, String fingerprint) {
     public ArtefactRow {
       Objects.requireNonNull(jarName);
+      Objects.requireNonNull(fingerprint);
     }
   }
 
   private final DbClient dbClient;
+  private final DbClient readClient;
 
   /**
    * Creates an instance of the entity.
    * @param dbClient The database connection
    */
   public ArtefactTable(DbClient dbClient) {
+    this(dbClient, dbClient);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   */
+  public ArtefactTable(DbClient dbClient, DbClient readClient) {
     Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
     this.dbClient = dbClient;
+    this.readClient = readClient;
     createTable();
   }
 
@@ -49,7 +65,8 @@ public class ArtefactTable {
   public int insert(ArtefactRow artefact) {
     Objects.requireNonNull(artefact);
     return dbClient.execute(exec ->
-            exec.query("INSERT INTO artefact(jarName, insertionDate) VALUES (?, ?) RETURNING id", artefact.jarName, artefact.insertionDate)
+            exec.query("INSERT INTO artefact(jarName, insertionDate, fingerprint, indexed) VALUES (?, ?, ?, 0) RETURNING id",
+                artefact.jarName, artefact.insertionDate, artefact.fingerprint)
         ).first()
         .map(row -> row.column("id").as(Integer.class))
         .await();
@@ -60,7 +77,7 @@ public class ArtefactTable {
    * @return The list of artefacts
    */
   public List<Artefact> getAll() {
-    return dbClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact"))
+    return readClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact"))
         .map(dbRow -> new Artefact(
             dbRow.column("id").as(Integer.class),
             dbRow.column("jarName").as(String.class),
@@ -72,13 +89,56 @@ public class ArtefactTable {
         })).await();
   }
 
+  /**
+   * Gets a page of indexed artefacts, in insertion order or in jar name order when a prefix is given.
+   * @param after The id of the last artefact of the previous page, 0 for the first page
+   * @param limit The maximum number of artefacts
+   * @param prefix The prefix of the jar names, empty to get every artefact
+   * @return The list of artefacts
+   */
+  public List<Artefact> getPage(int after, int limit, String prefix) {
+    Objects.requireNonNull(prefix);
+    if (prefix.isEmpty()) {
+      return select("indexed = 1 AND id > ? ORDER BY id LIMIT ?", after, limit);
+    }
+    // keyset on the jarName index (which ends with the rowid): the page starts right after the jar name
+    // of the previous artefact, the unary + keeps GLOB from replacing this start by the prefix one
+    var condition = """
+        indexed = 1
+          AND (jarName, id) > (COALESCE((SELECT jarName FROM artefact WHERE id = ?), ?), ?)
+          AND +jarName GLOB ?
+        """;
+    var upperBound = upperBound(prefix);
+    return upperBound.isEmpty()
+        ? select(condition + "ORDER BY jarName, id LIMIT ?", after, prefix, after, escapeGlob(prefix) + "*", limit)
+        : select(condition + "AND jarName < ? ORDER BY jarName, id LIMIT ?",
+            after, prefix, after, escapeGlob(prefix) + "*", upperBound.get(), limit);
+  }
+
+  // GLOB is case-sensitive like a prefix match, unlike LIKE it can be a range of the jarName index
+  private static String escapeGlob(String prefix) {
+    return prefix.replace("[", "[[]").replace("*", "[*]").replace("?", "[?]");
+  }
+
+  // the smallest name greater than every name starting with the prefix, so that a page stops at the end of the range
+  private static Optional<String> upperBound(String prefix) {
+    var codePoints = prefix.codePoints().toArray();
+    for (var i = codePoints.length - 1; i >= 0; i--) {
+      if (codePoints[i] < Character.MAX_CODE_POINT) {
+        var next = codePoints[i] + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : codePoints[i] + 1;
+        return Optional.of(new String(codePoints, 0, i) + Character.toString(next));
+      }
+    }
+    return Optional.empty();
+  }
+
   /**
    * Gets all artefacts without a given artefact.
    * @param withoutMe The id of the artefact to ignore 🥺
    * @return The list of artefacts
    */
   public List<Artefact> getAll(int withoutMe) {
-    return dbClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact WHERE id != ?", withoutMe))
+    return readClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact WHERE id != ?", withoutMe))
         .map(dbRow -> new Artefact(
             dbRow.column("id").as(Integer.class),
             dbRow.column("jarName").as(String.class),
@@ -96,7 +156,7 @@ public class ArtefactTable {
    * @return The selected artefact details
    */
   public Artefact get(int id) {
-    return dbClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact WHERE id = ?", id))
+    return readClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact WHERE id = ?", id))
         .first()
         .map(dbRow -> new Artefact(
             dbRow.column("id").as(Integer.class),
@@ -107,4 +167,70 @@ public class ArtefactTable {
           return null;
         })).await();
   }
+
+  /**
+   * Gets the artefacts whose instructions are all inserted, in insertion order.
+   * @return The list of artefacts
+   */
+  public List<Artefact> getIndexed() {
+    return getAllWhere("indexed = 1");
+  }
+
+  /**
+   * Gets the indexed artefacts whose fingerprints can be compared to those of an artefact, in insertion order.
+   * @param artefactId The id of an artefact
+   * @return The list of artefacts, the given one included
+   */
+  public List<Artefact> getComparable(int artefactId) {
+    return getAllWhere("indexed = 1 AND fingerprint = (SELECT fingerprint FROM artefact WHERE id = ?)", artefactId);
+  }
+
+  /**
+   * Gets the indexed artefacts not yet compared to the others, in insertion order.
+   * @return The list of artefacts
+   */
+  public List<Artefact> getClonesPending() {
+    return getAllWhere("indexed = 1 AND clonesComputed = 0");
+  }
+
+  private List<Artefact> getAllWhere(String condition, Object... parameters) {
+    return select(condition + " ORDER BY id", parameters);
+  }
+
+  private List<Artefact> select(String clauses, Object... parameters) {
+    return readClient.execute(exec -> exec.query("SELECT id, jarName, insertionDate FROM artefact WHERE " + clauses, parameters))
+        .map(dbRow -> new Artefact(
+            dbRow.column("id").as(Integer.class),
+            dbRow.column("jarName").as(String.class),
+            dbRow.column("insertionDate").as(Long.class))
+        ).collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return List.of();
+        })).await();
+  }
+
+  /**
+   * Marks an artefact as indexed, once all its instructions are inserted.
+   * @param id The id of an artefact
+   */
+  public void markIndexed(int id) {
+    dbClient.execute(exec -> exec.update("UPDATE artefact SET indexed = 1 WHERE id = ?", id))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Marks the clones of an artefact as computed.
+   * @param id The id of an artefact
+   */
+  public void markClonesComputed(int id) {
+    dbClient.execute(exec -> exec.update("UPDATE artefact SET clonesComputed = 1 WHERE id = ?", id))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
 }
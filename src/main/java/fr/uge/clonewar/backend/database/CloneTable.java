@@ -4,8 +4,14 @@ import fr.uge.clonewar.backend.model.Artefact;
 import fr.uge.clonewar.backend.model.Clones;
 import io.helidon.dbclient.DbClient;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Represents a Clone entity of the database.
@@ -16,18 +22,31 @@ public class CloneTable {
    * @param artefactId The id of the reference artefact
    * @param cloneId The id of the artefact compared to
    * @param percentage The percentage of similarity
+   * @param skipped true if the artefacts were not compared, the percentage is then 0
    */
-  public record CloneRow(int artefactId, int cloneId, int percentage) {}
+  public record CloneRow(int artefactId, int cloneId, int percentage, boolean skipped) {}
 
   private final DbClient dbClient;
+  private final DbClient readClient;
 
   /**
    * Creates an instance of the entity.
    * @param dbClient The database connection
    */
   public CloneTable(DbClient dbClient) {
+    this(dbClient, dbClient);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   */
+  public CloneTable(DbClient dbClient, DbClient readClient) {
     Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
     this.dbClient = dbClient;
+    this.readClient = readClient;
     createTable();
   }
 
@@ -43,18 +62,40 @@ public class CloneTable {
   /**
    * Insert a row to the database.
    * @param clone The row to be inserted
+   * @throws java.util.concurrent.CompletionException if the row could not be inserted
    */
   public void insert(CloneRow clone) {
     Objects.requireNonNull(clone);
-    dbClient.execute(exec -> exec.createInsert("INSERT INTO clone(artefactId, cloneId, percentage) VALUES (?, ?, ?)")
+    dbClient.execute(exec -> exec.createInsert("INSERT INTO clone(artefactId, cloneId, percentage, skipped) VALUES (?, ?, ?, ?)")
         .addParam(clone.artefactId)
         .addParam(clone.cloneId)
         .addParam(clone.percentage)
+        .addParam(clone.skipped ? 1 : 0)
         .execute()
-    ).exceptionally((t -> {
-      System.err.println(t.getMessage());
-      return null;
-    })).await();
+    ).await();
+  }
+
+  /**
+   * Insert rows to the database with a single statement.
+   * @param clones The rows to be inserted
+   * @throws java.util.concurrent.CompletionException if the rows could not be inserted,
+   *         their pairs are then computed again
+   */
+  public void insertAll(List<CloneRow> clones) {
+    Objects.requireNonNull(clones);
+    if (clones.isEmpty()) {
+      return;
+    }
+
+    var values = clones.stream()
+        .map(clone -> "(?, ?, ?, ?)")
+        .collect(Collectors.joining(", "));
+    var params = clones.stream()
+        .flatMap(clone -> Stream.of(clone.artefactId, clone.cloneId, clone.percentage, clone.skipped ? 1 : 0))
+        .toArray();
+
+    dbClient.execute(exec -> exec.insert("INSERT INTO clone(artefactId, cloneId, percentage, skipped) VALUES " + values, params))
+        .await();
   }
 
   /**
@@ -64,13 +105,13 @@ public class CloneTable {
    */
   public List<Clones.Clone> getAll(int artefactId) {
     var query = """
-        SELECT cloneId, jarName, insertionDate, percentage
+        SELECT cloneId, jarName, insertionDate, percentage, skipped
         FROM clone AS c
         JOIN artefact AS a ON a.id = cloneId
         WHERE artefactId = ?
         ORDER BY percentage DESC, jarName ASC
         """;
-    return dbClient.execute(exec -> exec.query(query, artefactId))
+    return readClient.execute(exec -> exec.query(query, artefactId))
         .map(dbRow ->
           new Clones.Clone(
             new Artefact(
@@ -78,7 +119,8 @@ public class CloneTable {
               dbRow.column("jarName").as(String.class),
               dbRow.column("insertionDate").as(Long.class)
             ),
-            dbRow.column("percentage").as(Integer.class)
+            dbRow.column("percentage").as(Integer.class),
+            dbRow.column("skipped").as(Integer.class) != 0
           )
         ).collectList()
         .exceptionally((t -> {
@@ -87,5 +129,92 @@ public class CloneTable {
         })).await();
   }
 
+  /**
+   * Tells if an artefact has been compared to a reference.
+   * @param artefactId The id of the reference
+   * @param cloneId The id of the compared artefact
+   * @return true if the clone is stored
+   */
+  public boolean contains(int artefactId, int cloneId) {
+    return readClient.execute(exec -> exec.query("SELECT 1 FROM clone WHERE artefactId = ? AND cloneId = ?",
+            artefactId, cloneId))
+        .first()
+        .map(row -> true)
+        .toOptionalSingle()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return Optional.empty();
+        })).await()
+        .isPresent();
+  }
 
+  /**
+   * Gets a page of clones for a given artefact id, by decreasing percentage.
+   * @param artefactId The id of an artefact
+   * @param after The id of the last clone of the previous page, empty for the first page,
+   *              a clone that is not compared to the artefact gives an empty page
+   * @param minPercentage The minimum percentage of similarity
+   * @param limit The maximum number of clones
+   * @return The list of clones
+   */
+  public List<Clones.Clone> getPage(int artefactId, OptionalInt after, int minPercentage, int limit) {
+    Objects.requireNonNull(after);
+    // the cursor is the (percentage, cloneId) of the last clone, percentages are sorted in decreasing order
+    var query = """
+        SELECT cloneId, jarName, insertionDate, percentage, skipped
+        FROM clone
+        JOIN artefact AS a ON a.id = cloneId
+        WHERE artefactId = ? AND percentage >= ?
+          AND (? = 0 OR (percentage, -cloneId) < (
+            SELECT percentage, -cloneId FROM clone WHERE artefactId = ? AND cloneId = ?))
+        ORDER BY percentage DESC, cloneId ASC
+        LIMIT ?
+        """;
+    return readClient.execute(exec -> exec.query(query, artefactId, minPercentage,
+            after.isPresent() ? 1 : 0, artefactId, after.orElse(0), limit))
+        .map(dbRow ->
+          new Clones.Clone(
+            new Artefact(
+              dbRow.column("cloneId").as(Integer.class),
+              dbRow.column("jarName").as(String.class),
+              dbRow.column("insertionDate").as(Long.class)
+            ),
+            dbRow.column("percentage").as(Integer.class),
+            dbRow.column("skipped").as(Integer.class) != 0
+          )
+        ).collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Gets the ids of the artefacts already compared to a given reference.
+   * @param artefactId The id of the reference
+   * @return The ids of the compared artefacts
+   */
+  public Set<Integer> getCloneIds(int artefactId) {
+    return getIds("SELECT cloneId AS id FROM clone WHERE artefactId = ?", artefactId);
+  }
+
+  /**
+   * Gets the ids of the references a given artefact has already been compared to.
+   * @param cloneId The id of the compared artefact
+   * @return The ids of the references
+   */
+  public Set<Integer> getReferenceIds(int cloneId) {
+    return getIds("SELECT artefactId AS id FROM clone WHERE cloneId = ?", cloneId);
+  }
+
+  private Set<Integer> getIds(String query, int id) {
+    var ids = new HashSet<Integer>();
+    readClient.execute(exec -> exec.query(query, id))
+        .forEach(row -> ids.add(row.column("id").as(Integer.class)))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+    return ids;
+  }
 }
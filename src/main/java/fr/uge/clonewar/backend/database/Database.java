@@ -1,31 +1,171 @@
 package fr.uge.clonewar.backend.database;
 
+import fr.uge.clonewar.Fingerprinting;
+import io.helidon.config.Config;
 import io.helidon.dbclient.DbClient;
+import io.helidon.dbclient.jdbc.ConnectionPool;
+import io.helidon.dbclient.jdbc.JdbcDbClientProviderBuilder;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Objects;
+import java.util.Properties;
 
 /**
  * Represents a Database.
  */
 public class Database {
+  private static final int DEFAULT_READ_POOL_SIZE = 4;
+  private static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 10 * 60 * 1_000;
+
   private final ArtefactTable artefactTable;
   private final FileTable fileTable;
   private final InstructionTable instructionTable;
   private final CloneTable cloneTable;
   private final DiffTable diffTable;
+  private final FileSimilarityTable fileSimilarityTable;
+  private final HashIndexTable hashIndexTable;
+  private final LshTable lshTable;
+  private final JobTable jobTable;
 
   /**
-   * Creates an instance of the database.
+   * Creates the database described by a database config.
+   * Writes go through a pool of a single connection, SQLite serializing writers anyway,
+   * while reads go through a pool of read-only connections sized by read-pool-size.
+   * A writer waits for the connection while another one holds it for a whole batch (instructions of an artefact,
+   * diffs of a comparison), write-timeout is the number of milliseconds it waits before failing, 10 minutes by default.
+   * @param config The database config
+   * @return The database
+   */
+  public static Database create(Config config) {
+    Objects.requireNonNull(config);
+    var readPoolSize = config.get("read-pool-size").asInt().orElse(DEFAULT_READ_POOL_SIZE);
+    if (readPoolSize < 1) {
+      throw new IllegalArgumentException("read-pool-size < 1");
+    }
+    // the writer pool creates the database file, it must exist before a read-only connection is opened
+    var writeTimeout = config.get("write-timeout").asLong().orElse(DEFAULT_WRITE_TIMEOUT_MILLIS);
+    var writeClient = createClient(config, 1, writeTimeout, false);
+    var readClient = createClient(config, readPoolSize, 0, true);
+    return new Database(writeClient, readClient, config);
+  }
+
+  /**
+   * Creates the database connection described by a database config.
+   * The sqlite node sets the journal-mode, synchronous, cache-size and mmap-size pragmas
+   * of every connection opened to the database.
+   * @param config The database config
+   * @return The database connection
+   */
+  public static DbClient createClient(Config config) {
+    Objects.requireNonNull(config);
+    return createClient(config, 0, 0, false);
+  }
+
+  // a poolSize or timeout of 0 keeps the default of the pool
+  private static DbClient createClient(Config config, int poolSize, long timeout, boolean readOnly) {
+    var connection = config.get("connection");
+    var sqlite = config.get("sqlite");
+
+    var parameters = new ArrayList<String>();
+    sqlite.get("journal-mode").asString().ifPresent(mode -> parameters.add("journal_mode=" + mode));
+    sqlite.get("synchronous").asString().ifPresent(mode -> parameters.add("synchronous=" + mode));
+    sqlite.get("cache-size").asLong().ifPresent(size -> parameters.add("cache_size=" + size));
+    if (readOnly) {
+      // SQLITE_OPEN_READONLY, the driver cannot switch a connection to read-only once opened
+      parameters.add("open_mode=1");
+    }
+    var url = connection.get("url").asString().get();
+    if (!parameters.isEmpty()) {
+      url += (url.contains("?") ? "&" : "?") + String.join("&", parameters);
+    }
+
+    // the driver does not know mmap_size, it is run on each new connection of the pool instead
+    var properties = new Properties();
+    sqlite.get("mmap-size").asLong()
+        .ifPresent(size -> properties.setProperty("connectionInitSql", "PRAGMA mmap_size = " + size));
+    if (poolSize > 0) {
+      properties.setProperty("maximumPoolSize", String.valueOf(poolSize));
+    }
+    if (timeout > 0) {
+      properties.setProperty("connectionTimeout", String.valueOf(timeout));
+    }
+    // the pool resets the read-only flag of its connections, it must match the open mode
+    properties.setProperty("readOnly", String.valueOf(readOnly));
+
+    var pool = ConnectionPool.builder()
+        .url(url)
+        .username(connection.get("username").asString().orElse(""))
+        .password(connection.get("password").asString().orElse(""))
+        .properties(properties)
+        .build();
+    return JdbcDbClientProviderBuilder.create()
+        .connectionPool(pool)
+        .build();
+  }
+
+  /**
+   * Creates an instance of the database with the default settings.
    * @param dbClient The database connection
    */
   public Database(DbClient dbClient) {
-    Objects.requireNonNull(dbClient);
+    this(dbClient, Config.empty());
+  }
+
+  /**
+   * Creates an instance of the database.
+   * @param dbClient The database connection
+   * @param config The database config, instruction-batch-size sets the number of instructions inserted at once
+   */
+  public Database(DbClient dbClient, Config config) {
+    this(dbClient, dbClient, config);
+  }
+
+  /**
+   * Creates an instance of the database that reads and writes through different connections.
+   * @param writeClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param config The database config, instruction-batch-size sets the number of instructions inserted at once
+   *               and instruction-cache-size the number of bytes of instructions kept in memory,
+   *               hash-window the number of instructions of a fingerprint,
+   *               winnowing-window the number of consecutive fingerprints of which only one is stored,
+   *               lsh-bands and lsh-rows set the banding of the MinHash signatures, 0 bands or absent disables it,
+   *               candidate-max-artefacts-per-hash and candidate-min-shared-hashes select the candidates
+   *               of the hash index,
+   *               segment-directory the directory of the memory mapped instructions, absent or empty disables it
+   */
+  public Database(DbClient writeClient, DbClient readClient, Config config) {
+    Objects.requireNonNull(writeClient);
+    Objects.requireNonNull(readClient);
+    Objects.requireNonNull(config);
+
+    var instructionBatchSize = config.get("instruction-batch-size").asInt().orElse(InstructionTable.DEFAULT_BATCH_SIZE);
+    var instructionCacheSize = config.get("instruction-cache-size").asLong().orElse(InstructionTable.DEFAULT_CACHE_SIZE);
+    var fingerprinting = new Fingerprinting(
+        config.get("hash-window").asInt().orElse(Fingerprinting.DEFAULT_WINDOW),
+        config.get("winnowing-window").asInt().orElse(1));
+    // MinHash estimates the Jaccard similarity, a small artefact contained in a large one would miss every band
+    var lshBands = config.get("lsh-bands").asInt().orElse(0);
+    var lshRows = config.get("lsh-rows").asInt().orElse(LshTable.DEFAULT_ROWS);
+    var maxArtefactsPerHash = config.get("candidate-max-artefacts-per-hash").asInt()
+        .orElse(HashIndexTable.DEFAULT_MAX_ARTEFACTS_PER_HASH);
+    var minSharedHashes = config.get("candidate-min-shared-hashes").asInt()
+        .orElse(HashIndexTable.DEFAULT_MIN_SHARED_HASHES);
 
-    artefactTable = new ArtefactTable(dbClient);
-    fileTable = new FileTable(dbClient);
-    instructionTable = new InstructionTable(dbClient);
-    cloneTable = new CloneTable(dbClient);
-    diffTable = new DiffTable(dbClient);
+    artefactTable = new ArtefactTable(writeClient, readClient);
+    fileTable = new FileTable(writeClient);
+    var segmentDirectory = config.get("segment-directory").asString().asOptional()
+        .filter(directory -> !directory.isEmpty())
+        .map(Path::of);
+    instructionTable = new InstructionTable(writeClient, readClient, instructionBatchSize, instructionCacheSize,
+        fingerprinting, segmentDirectory);
+    cloneTable = new CloneTable(writeClient, readClient);
+    diffTable = new DiffTable(writeClient, readClient);
+    fileSimilarityTable = new FileSimilarityTable(writeClient, readClient);
+    jobTable = new JobTable(writeClient, readClient);
+    SchemaMigration.migrate(writeClient);
+    hashIndexTable = new HashIndexTable(writeClient, readClient, maxArtefactsPerHash, minSharedHashes);
+    lshTable = new LshTable(writeClient, readClient, lshBands, lshRows);
   }
 
   /**
@@ -67,4 +207,36 @@ public class Database {
   public DiffTable diffTable() {
     return diffTable;
   }
+
+  /**
+   * Gets the file similarity table.
+   * @return The file similarity table
+   */
+  public FileSimilarityTable fileSimilarityTable() {
+    return fileSimilarityTable;
+  }
+
+  /**
+   * Gets the hash index table.
+   * @return The hash index table
+   */
+  public HashIndexTable hashIndexTable() {
+    return hashIndexTable;
+  }
+
+  /**
+   * Gets the LSH table.
+   * @return The LSH table
+   */
+  public LshTable lshTable() {
+    return lshTable;
+  }
+
+  /**
+   * Gets the job table.
+   * @return The job table
+   */
+  public JobTable jobTable() {
+    return jobTable;
+  }
 }
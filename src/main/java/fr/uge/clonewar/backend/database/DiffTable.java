@@ -5,37 +5,68 @@ import fr.uge.clonewar.backend.model.Diff.DiffItem;
 import fr.uge.clonewar.backend.model.Diff.FileDiff;
 import io.helidon.dbclient.DbClient;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Represents a Diff entity of the database.
  */
 public class DiffTable {
   /**
-   * Represents a Row of the Diff entity.
+   * Represents a Row of the Diff entity, a range of consecutive lines of the reference file
+   * matching the same number of consecutive lines of the file compared to.
    * @param referenceId The id of the reference file
    * @param cloneId The id of the file compared to
-   * @param lineReference The line reference
-   * @param lineClone The line clone
+   * @param referenceStart The first line of the reference
+   * @param referenceEnd The last line of the reference, inclusive
+   * @param cloneStart The first line of the clone
+   * @param cloneEnd The last line of the clone, inclusive
    */
-  public record DiffRow(int referenceId, int cloneId, int lineReference, int lineClone) {}
+  public record DiffRow(int referenceId, int cloneId, int referenceStart, int referenceEnd, int cloneStart, int cloneEnd) {
+    public DiffRow {
+      if (referenceEnd < referenceStart || referenceEnd - referenceStart != cloneEnd - cloneStart) {
+        throw new IllegalArgumentException("ranges must be non empty and of the same length");
+      }
+    }
+  }
 
+  private static final int MAX_BATCH_SIZE = 10_000;
+  private static final String INSERT = "INSERT INTO diff_range(referenceId, cloneId, referenceStart, referenceEnd, " +
+      "cloneStart, cloneEnd) VALUES (?, ?, ?, ?, ?, ?)";
   private final DbClient dbClient;
+  private final DbClient readClient;
 
   /**
    * Creates an instance of the entity.
    * @param dbClient The database connection
    */
   public DiffTable(DbClient dbClient) {
+    this(dbClient, dbClient);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   */
+  public DiffTable(DbClient dbClient, DbClient readClient) {
     Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
     this.dbClient = dbClient;
+    this.readClient = readClient;
     createTable();
   }
 
   private void createTable() {
-    dbClient.execute(exec -> exec.update("CREATE TABLE IF NOT EXISTS diff(id INTEGER, referenceId INTEGER, " +
-            "cloneId INTEGER, lineReference INTEGER, lineClone INTEGER, PRIMARY KEY(id))")
+    dbClient.execute(exec -> exec.update("CREATE TABLE IF NOT EXISTS diff_range(id INTEGER, referenceId INTEGER, " +
+            "cloneId INTEGER, referenceStart INTEGER, referenceEnd INTEGER, cloneStart INTEGER, cloneEnd INTEGER, " +
+            "PRIMARY KEY(id))")
         ).exceptionally(t -> {
           System.err.println(t.getMessage());
           return null;
@@ -48,14 +79,63 @@ public class DiffTable {
    */
   public void insert(DiffRow row) {
     Objects.requireNonNull(row);
-    dbClient.execute(exec -> exec.insert("INSERT INTO diff(referenceId, cloneId, lineReference, lineClone) VALUES (?, ?, ?, ?)",
-            row.referenceId, row.cloneId, row.lineReference, row.lineClone)
+    dbClient.execute(exec -> exec.insert(INSERT, row.referenceId, row.cloneId,
+            row.referenceStart, row.referenceEnd, row.cloneStart, row.cloneEnd)
     ).exceptionally((t -> {
       System.err.println(t.getMessage());
       return null;
     })).await();
   }
 
+  /**
+   * Insert rows to the database within a single transaction.
+   * Rows are sent through a prepared statement in batches of at most MAX_BATCH_SIZE rows.
+   * The rows already stored for the pairs of artefacts of the rows are replaced, a failed comparison can be retried.
+   * @param rows The rows to be inserted
+   * @throws IllegalStateException if the rows could not be inserted
+   */
+  public void insertAll(List<DiffRow> rows) {
+    Objects.requireNonNull(rows);
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      connection.setAutoCommit(false);
+      try (var delete = connection.prepareStatement("DELETE FROM diff_range WHERE referenceId = ? AND cloneId = ?");
+           var statement = connection.prepareStatement(INSERT)) {
+        var pairs = rows.stream().map(row -> List.of(row.referenceId, row.cloneId)).distinct().toList();
+        for (var pair : pairs) {
+          delete.setInt(1, pair.get(0));
+          delete.setInt(2, pair.get(1));
+          delete.executeUpdate();
+        }
+        for (var i = 0; i < rows.size(); i++) {
+          var row = rows.get(i);
+          statement.setInt(1, row.referenceId);
+          statement.setInt(2, row.cloneId);
+          statement.setInt(3, row.referenceStart);
+          statement.setInt(4, row.referenceEnd);
+          statement.setInt(5, row.cloneStart);
+          statement.setInt(6, row.cloneEnd);
+          statement.addBatch();
+          if ((i + 1) % MAX_BATCH_SIZE == 0) {
+            statement.executeBatch();
+          }
+        }
+        statement.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Diff insertion failed", e);
+    }
+  }
+
   /**
    * Gets the diff of those artefacts
    *
@@ -64,56 +144,141 @@ public class DiffTable {
    * @return The diff
    */
   public List<FileDiff> getDiff(int referenceId, int cloneId) {
-    var query = """
-        SELECT DISTINCT referenceId, f1.filename AS reference, f1.content AS refContent, cloneId, f2.filename AS file, f2.content AS fileContent
-        FROM diff
-        JOIN file AS f1 ON f1.id = referenceId
-        JOIN file AS f2 ON f2.id = cloneId
-        WHERE f1.artefactId = ? AND f2.artefactId = ?
-        ORDER BY reference, file
-        """;
-    return dbClient.execute(exec -> exec.query(query, referenceId, cloneId))
-        .map(row -> {
-          var refId = row.column("referenceId").as(Integer.class);
-          var reference = row.column("reference").as(String.class);
-          var refContent = row.column("refContent").as(String.class);
-
-          var fileId = row.column("cloneId").as(Integer.class);
-          var file = row.column("file").as(String.class);
-          var fileContent = row.column("fileContent").as(String.class);
-
-          var diffs = getFileDiff(refId, refContent, fileId, fileContent);
-          return new FileDiff(reference, file, diffs);
-        }).collectList()
-        .exceptionally((t -> {
-          t.printStackTrace();
-          return null;
-        })).await();
+    var diff = new ArrayList<FileDiff>();
+    forEachFileDiff(referenceId, cloneId, diff::add);
+    return diff;
+  }
+
+  /**
+   * Represents the position of a pair of files in a diff, files are sorted by reference then by file name.
+   * @param reference The name of the reference file
+   * @param file The name of the file compared to
+   */
+  public record FileCursor(String reference, String file) {
+    public FileCursor {
+      Objects.requireNonNull(reference);
+      Objects.requireNonNull(file);
+    }
+  }
+
+  /**
+   * Sends the diff of those artefacts file by file, so that only one pair of files is in memory at a time.
+   *
+   * @param referenceId The id of the reference artefact
+   * @param cloneId     The id of the tested artefact
+   * @param consumer    The consumer of the diff of each pair of files
+   */
+  public void forEachFileDiff(int referenceId, int cloneId, Consumer<? super FileDiff> consumer) {
+    forEachFileDiff(referenceId, cloneId, Optional.empty(), -1, consumer);
   }
 
-  private List<DiffItem> getFileDiff(int referenceId, String refContent, int cloneId, String fileContent) {
-    var refLines = refContent.lines().toList();
-    var fileLines = fileContent.lines().toList();
+  /**
+   * Sends a page of the diff of those artefacts file by file.
+   * Pairs of files, their contents and their ranges are read by a single query, each pair is sent
+   * as soon as its last range is read.
+   *
+   * @param referenceId The id of the reference artefact
+   * @param cloneId     The id of the tested artefact
+   * @param after       The last pair of files of the previous page, empty for the first page
+   * @param limit       The maximum number of pairs of files, a negative limit sends every pair
+   * @param consumer    The consumer of the diff of each pair of files
+   * @throws java.util.concurrent.CompletionException if the query or the consumer fails
+   */
+  public void forEachFileDiff(int referenceId, int cloneId, Optional<FileCursor> after, int limit,
+                              Consumer<? super FileDiff> consumer) {
+    Objects.requireNonNull(after);
+    Objects.requireNonNull(consumer);
+    // contents are only read with the first range of each pair of files
     var query = """
-        SELECT DISTINCT lineReference, lineClone
-        FROM diff
-        WHERE referenceId = ? AND cloneId = ?
-        ORDER BY lineReference, lineClone
+        WITH pair AS (
+          SELECT DISTINCT referenceId, f1.filename AS reference, cloneId, f2.filename AS file
+          FROM diff_range
+          JOIN file AS f1 ON f1.id = referenceId
+          JOIN file AS f2 ON f2.id = cloneId
+          WHERE f1.artefactId = ? AND f2.artefactId = ?
+            AND (? = 0 OR (f1.filename, f2.filename) > (?, ?))
+          ORDER BY reference, file
+          LIMIT ?
+        ), matched AS (
+          SELECT p.*, d.referenceStart, d.referenceEnd, d.cloneStart,
+            ROW_NUMBER() OVER (PARTITION BY p.referenceId, p.cloneId ORDER BY d.id) AS position
+          FROM pair AS p
+          JOIN diff_range AS d ON d.referenceId = p.referenceId AND d.cloneId = p.cloneId
+        )
+        SELECT r.referenceId, r.reference, r.cloneId, r.file, r.referenceStart, r.referenceEnd, r.cloneStart,
+          CASE WHEN r.position = 1 THEN f1.content END AS referenceContent,
+          CASE WHEN r.position = 1 THEN f2.content END AS fileContent
+        FROM matched AS r
+        JOIN file AS f1 ON f1.id = r.referenceId
+        JOIN file AS f2 ON f2.id = r.cloneId
+        ORDER BY r.reference, r.file, r.referenceId, r.cloneId, r.position
         """;
-    return dbClient.execute(exec -> exec.query(query, referenceId, cloneId))
-        .map(row -> {
-          var lineReference = row.column("lineReference").as(Integer.class);
-          var lineClone = row.column("lineClone").as(Integer.class);
-
-          return new DiffItem(
-              new Diff.DiffComponent(lineReference, refLines.get(lineReference - 1)),
-              new Diff.DiffComponent(lineClone, fileLines.get(lineClone - 1))
-          );
-        }).collectList()
-        .exceptionally((t -> {
-          t.printStackTrace();
-          return null;
-        })).await();
+    var cursor = after.orElse(new FileCursor("", ""));
+    var current = new FileDiffBuilder[1];
+    readClient.execute(exec -> exec.query(query, referenceId, cloneId,
+            after.isPresent() ? 1 : 0, cursor.reference, cursor.file, limit))
+        .forEach(row -> {
+          if (current[0] == null || current[0].referenceId != row.column("referenceId").as(Integer.class)
+              || current[0].cloneId != row.column("cloneId").as(Integer.class)) {
+            if (current[0] != null) {
+              consumer.accept(current[0].build());
+            }
+            current[0] = new FileDiffBuilder(
+                row.column("referenceId").as(Integer.class),
+                row.column("reference").as(String.class),
+                row.column("referenceContent").as(String.class),
+                row.column("cloneId").as(Integer.class),
+                row.column("file").as(String.class),
+                row.column("fileContent").as(String.class));
+          }
+          current[0].add(
+              row.column("referenceStart").as(Integer.class),
+              row.column("referenceEnd").as(Integer.class),
+              row.column("cloneStart").as(Integer.class));
+        }).await();
+    if (current[0] != null) {
+      consumer.accept(current[0].build());
+    }
   }
 
+  /**
+   * Collects the matched lines of a pair of files from its ranges.
+   */
+  private static final class FileDiffBuilder {
+    private final int referenceId;
+    private final String reference;
+    private final List<String> refLines;
+    private final int cloneId;
+    private final String file;
+    private final List<String> fileLines;
+    private final ArrayList<DiffItem> items = new ArrayList<>();
+
+    private FileDiffBuilder(int referenceId, String reference, String refContent,
+                            int cloneId, String file, String fileContent) {
+      this.referenceId = referenceId;
+      this.reference = reference;
+      this.refLines = Objects.requireNonNull(refContent, "missing content of " + reference).lines().toList();
+      this.cloneId = cloneId;
+      this.file = file;
+      this.fileLines = Objects.requireNonNull(fileContent, "missing content of " + file).lines().toList();
+    }
+
+    private void add(int referenceStart, int referenceEnd, int cloneStart) {
+      for (var offset = 0; offset <= referenceEnd - referenceStart; offset++) {
+        var lineReference = referenceStart + offset;
+        var lineClone = cloneStart + offset;
+        items.add(new DiffItem(
+            new Diff.DiffComponent(lineReference, refLines.get(lineReference - 1)),
+            new Diff.DiffComponent(lineClone, fileLines.get(lineClone - 1))
+        ));
+      }
+    }
+
+    private FileDiff build() {
+      // ranges are stored by diagonal, lines are sent in order
+      items.sort(Comparator.<DiffItem>comparingInt(item -> item.reference().line())
+          .thenComparingInt(item -> item.file().line()));
+      return new FileDiff(reference, file, items);
+    }
+  }
 }
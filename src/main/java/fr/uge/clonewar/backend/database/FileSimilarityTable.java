@@ -0,0 +1,164 @@
+package fr.uge.clonewar.backend.database;
+
+import fr.uge.clonewar.backend.model.FileSimilarity;
+import io.helidon.dbclient.DbClient;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Represents the similarity of the pairs of files of two compared artefacts.
+ * Compared pairs of artefacts are recorded even if no file is similar, pairs compared before file similarities
+ * were stored, or never compared because they are not candidates, are not.
+ */
+public class FileSimilarityTable {
+  /**
+   * Represents a Row of the FileSimilarity entity.
+   * @param referenceId The id of the reference artefact
+   * @param cloneId The id of the artefact compared to
+   * @param referenceFileId The id of the reference file
+   * @param cloneFileId The id of the file compared to
+   * @param shared The number of distinct fingerprints of the file found in the reference file
+   * @param percentage The percentage of the distinct fingerprints of the file found in the reference file
+   */
+  public record FileSimilarityRow(int referenceId, int cloneId, int referenceFileId, int cloneFileId,
+                                  int shared, int percentage) {}
+
+  private static final int MAX_BATCH_SIZE = 10_000;
+  private final DbClient dbClient;
+  private final DbClient readClient;
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection
+   */
+  public FileSimilarityTable(DbClient dbClient) {
+    this(dbClient, dbClient);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   */
+  public FileSimilarityTable(DbClient dbClient, DbClient readClient) {
+    Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
+    this.dbClient = dbClient;
+    this.readClient = readClient;
+    createTable();
+  }
+
+  private void createTable() {
+    for (var sql : List.of(
+        "CREATE TABLE IF NOT EXISTS file_similarity(referenceId INTEGER, cloneId INTEGER, referenceFileId INTEGER, " +
+            "cloneFileId INTEGER, shared INTEGER, percentage INTEGER, " +
+            "PRIMARY KEY(referenceId, cloneId, referenceFileId, cloneFileId)) WITHOUT ROWID",
+        "CREATE INDEX IF NOT EXISTS file_similarity_percentage ON file_similarity(referenceId, cloneId, percentage DESC)",
+        "CREATE TABLE IF NOT EXISTS file_similarity_pair(referenceId INTEGER, cloneId INTEGER, " +
+            "PRIMARY KEY(referenceId, cloneId)) WITHOUT ROWID")) {
+      dbClient.execute(exec -> exec.update(sql))
+          .exceptionally(t -> {
+            System.err.println(t.getMessage());
+            return null;
+          }).await();
+    }
+  }
+
+  /**
+   * Insert the rows of a compared pair of artefacts to the database within a single transaction.
+   * Rows are sent through a prepared statement in batches of at most MAX_BATCH_SIZE rows.
+   * @param referenceId The id of the reference artefact
+   * @param cloneId The id of the artefact compared to
+   * @param rows The rows to be inserted, possibly none
+   * @throws IllegalStateException if the rows could not be inserted
+   */
+  public void insertAll(int referenceId, int cloneId, List<FileSimilarityRow> rows) {
+    Objects.requireNonNull(rows);
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      connection.setAutoCommit(false);
+      try (var pair = connection.prepareStatement(
+              "INSERT OR REPLACE INTO file_similarity_pair(referenceId, cloneId) VALUES (?, ?)");
+           var statement = connection.prepareStatement("INSERT OR REPLACE INTO file_similarity(referenceId, cloneId, " +
+          "referenceFileId, cloneFileId, shared, percentage) VALUES (?, ?, ?, ?, ?, ?)")) {
+        for (var i = 0; i < rows.size(); i++) {
+          var row = rows.get(i);
+          statement.setInt(1, row.referenceId);
+          statement.setInt(2, row.cloneId);
+          statement.setInt(3, row.referenceFileId);
+          statement.setInt(4, row.cloneFileId);
+          statement.setInt(5, row.shared);
+          statement.setInt(6, row.percentage);
+          statement.addBatch();
+          if ((i + 1) % MAX_BATCH_SIZE == 0) {
+            statement.executeBatch();
+          }
+        }
+        statement.executeBatch();
+        pair.setInt(1, referenceId);
+        pair.setInt(2, cloneId);
+        pair.executeUpdate();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("File similarity insertion failed", e);
+    }
+  }
+
+  /**
+   * Tells if the files of two artefacts have been compared.
+   * @param referenceId The id of the reference artefact
+   * @param cloneId The id of the artefact compared to
+   * @return true if the file similarities of the pair are stored
+   */
+  public boolean isComputed(int referenceId, int cloneId) {
+    return readClient.execute(exec -> exec.query("SELECT 1 FROM file_similarity_pair WHERE referenceId = ? AND cloneId = ?",
+            referenceId, cloneId))
+        .first()
+        .map(row -> true)
+        .toOptionalSingle()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return Optional.empty();
+        })).await()
+        .isPresent();
+  }
+
+  /**
+   * Gets the most similar pairs of files of two artefacts.
+   * @param referenceId The id of the reference artefact
+   * @param cloneId The id of the artefact compared to
+   * @param limit The maximum number of pairs, a negative limit gets every pair
+   * @return The pairs of files sharing fingerprints, by decreasing percentage
+   */
+  public List<FileSimilarity> getMostSimilar(int referenceId, int cloneId, int limit) {
+    var query = """
+        SELECT f1.filename AS reference, f2.filename AS file, shared, percentage
+        FROM file_similarity
+        JOIN file AS f1 ON f1.id = referenceFileId
+        JOIN file AS f2 ON f2.id = cloneFileId
+        WHERE referenceId = ? AND cloneId = ?
+        ORDER BY percentage DESC, shared DESC, reference, file
+        LIMIT ?
+        """;
+    return readClient.execute(exec -> exec.query(query, referenceId, cloneId, limit))
+        .map(row -> new FileSimilarity(
+            row.column("reference").as(String.class),
+            row.column("file").as(String.class),
+            row.column("shared").as(Integer.class),
+            row.column("percentage").as(Integer.class))
+        ).collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return List.of();
+        })).await();
+  }
+}
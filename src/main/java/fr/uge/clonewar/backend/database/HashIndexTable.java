@@ -0,0 +1,152 @@
+package fr.uge.clonewar.backend.database;
+
+import io.helidon.dbclient.DbClient;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Represents the inverted index from instruction hashes to the artefacts that contain them.
+ * Hashes found in many artefacts (default constructors, accessors) would make every artefact a candidate,
+ * they are not counted, and an artefact is a candidate only if it shares enough of the other hashes.
+ */
+public class HashIndexTable {
+  /**
+   * Default number of artefacts above which a hash is too common to tell artefacts apart.
+   */
+  public static final int DEFAULT_MAX_ARTEFACTS_PER_HASH = 256;
+  /**
+   * Default number of uncommon hashes an artefact shares with another to be a candidate,
+   * with windows of 5 instructions they cover at least 8 consecutive instructions.
+   */
+  public static final int DEFAULT_MIN_SHARED_HASHES = 4;
+
+  private final DbClient dbClient;
+  private final DbClient readClient;
+  private final int maxArtefactsPerHash;
+  private final int minSharedHashes;
+
+  /**
+   * Creates an instance of the entity with the default parameters.
+   * @param dbClient The database connection
+   */
+  public HashIndexTable(DbClient dbClient) {
+    this(dbClient, dbClient, DEFAULT_MAX_ARTEFACTS_PER_HASH, DEFAULT_MIN_SHARED_HASHES);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param maxArtefactsPerHash The number of artefacts above which a hash is not counted
+   * @param minSharedHashes The number of counted hashes a candidate shares with an artefact
+   * @throws IllegalArgumentException if maxArtefactsPerHash or minSharedHashes is lower than 1
+   */
+  public HashIndexTable(DbClient dbClient, DbClient readClient, int maxArtefactsPerHash, int minSharedHashes) {
+    Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
+    if (maxArtefactsPerHash < 1) {
+      throw new IllegalArgumentException("maxArtefactsPerHash < 1");
+    }
+    if (minSharedHashes < 1) {
+      throw new IllegalArgumentException("minSharedHashes < 1");
+    }
+    this.dbClient = dbClient;
+    this.readClient = readClient;
+    this.maxArtefactsPerHash = maxArtefactsPerHash;
+    this.minSharedHashes = minSharedHashes;
+    createTable();
+  }
+
+  private void createTable() {
+    dbClient.execute(exec -> exec.update("CREATE TABLE IF NOT EXISTS hash_index(hash INTEGER, artefactId INTEGER, " +
+            "PRIMARY KEY(hash, artefactId)) WITHOUT ROWID"))
+        .exceptionally(t -> {
+          System.err.println(t.getMessage());
+          return null;
+        }).await();
+    dbClient.execute(exec -> exec.update("CREATE INDEX IF NOT EXISTS hash_index_artefact ON hash_index(artefactId, hash)"))
+        .exceptionally(t -> {
+          System.err.println(t.getMessage());
+          return null;
+        }).await();
+  }
+
+  /**
+   * Gets the ids of the indexed artefacts that have no hash in the index,
+   * those indexed before the table existed.
+   * @return The ids, in insertion order
+   */
+  public List<Integer> getMissing() {
+    var query = """
+        SELECT id
+        FROM artefact AS a
+        WHERE indexed = 1 AND NOT EXISTS (SELECT 1 FROM hash_index WHERE artefactId = a.id)
+        ORDER BY id
+        """;
+    return readClient.execute(exec -> exec.query(query))
+        .map(row -> row.column("id").as(Integer.class))
+        .collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return List.of();
+        })).await();
+  }
+
+  /**
+   * Adds the distinct instruction hashes of an already inserted artefact to the index.
+   * @param artefactId The id of the artefact
+   * @throws java.util.concurrent.CompletionException if the hashes could not be inserted,
+   *         the artefact would never be a candidate
+   */
+  public void index(int artefactId) {
+    var query = """
+        INSERT OR IGNORE INTO hash_index(hash, artefactId)
+        SELECT DISTINCT i.hash, f.artefactId
+        FROM file AS f
+        JOIN instruction AS i ON f.id = i.fileId
+        WHERE f.artefactId = ?
+        """;
+    dbClient.execute(exec -> exec.insert(query, artefactId)).await();
+  }
+
+  /**
+   * Gets artefacts sharing at least minSharedHashes hashes with the given artefact, hashes of more than
+   * maxArtefactsPerHash artefacts are not counted, and indexed artefacts not in the index yet
+   * since nothing tells they are not similar.
+   * @param artefactId The id of an artefact
+   * @return The ids of the candidates, the given artefact excluded
+   */
+  public Set<Integer> candidates(int artefactId) {
+    // the artefacts of a hash are counted up to the first one above the maximum
+    var query = """
+        WITH ref AS (
+          SELECT r.hash AS hash
+          FROM hash_index AS r
+          WHERE r.artefactId = ?
+            AND (SELECT COUNT(*) FROM (SELECT 1 FROM hash_index WHERE hash = r.hash LIMIT ?)) <= ?
+        )
+        SELECT other.artefactId AS artefactId
+        FROM ref
+        JOIN hash_index AS other ON other.hash = ref.hash
+        WHERE other.artefactId != ?
+        GROUP BY other.artefactId
+        HAVING COUNT(*) >= ?
+        UNION
+        SELECT id AS artefactId
+        FROM artefact AS a
+        WHERE id != ? AND indexed = 1 AND NOT EXISTS (SELECT 1 FROM hash_index WHERE artefactId = a.id)
+        """;
+    var candidates = new HashSet<Integer>();
+    readClient.execute(exec -> exec.query(query, artefactId, maxArtefactsPerHash + 1, maxArtefactsPerHash,
+            artefactId, minSharedHashes, artefactId))
+        .forEach(row -> candidates.add(row.column("artefactId").as(Integer.class)))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+    return candidates;
+  }
+}
@@ -0,0 +1,115 @@
+package fr.uge.clonewar.backend.database;
+
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Keeps the instructions of the most recently used artefacts in memory, up to a number of bytes.
+ * The least recently used artefacts are evicted first.
+ */
+public final class InstructionCache {
+  /**
+   * Represents the counters of the cache.
+   * @param hits The number of lookups that found the artefact
+   * @param segmentHits The number of lookups that did not find the artefact and read its segment
+   * @param misses The number of lookups that did not find the artefact and read the database
+   * @param evictions The number of artefacts evicted to make room for others
+   * @param entries The number of cached artefacts
+   * @param bytes The estimated size of the cached artefacts
+   * @param maxBytes The maximum size of the cached artefacts
+   */
+  public record Stats(long hits, long segmentHits, long misses, long evictions, int entries, long bytes, long maxBytes) {}
+
+  private final long maxBytes;
+  private final LinkedHashMap<Integer, InstructionColumns> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long segmentHits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates an empty cache.
+   * @param maxBytes The maximum size of the cached artefacts, 0 disables the cache
+   * @throws IllegalArgumentException if maxBytes is negative
+   */
+  InstructionCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes < 0");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets the cached instructions of an artefact.
+   * A lookup that does not find the artefact is counted once it is known where the instructions are read,
+   * by {@link #segmentHit()} or {@link #miss()}.
+   * @param artefactId The id of the artefact
+   * @return The instructions, or null if they are not cached
+   */
+  synchronized InstructionColumns get(int artefactId) {
+    var columns = entries.get(artefactId);
+    if (columns != null) {
+      hits++;
+    }
+    return columns;
+  }
+
+  /**
+   * Counts a lookup of an artefact not cached whose instructions are read from its segment.
+   */
+  synchronized void segmentHit() {
+    segmentHits++;
+  }
+
+  /**
+   * Counts a lookup of an artefact not cached whose instructions are read from the database.
+   */
+  synchronized void miss() {
+    misses++;
+  }
+
+  /**
+   * Caches the instructions of an artefact, evicting the least recently used ones if needed.
+   * Instructions larger than the whole cache are not cached.
+   * @param artefactId The id of the artefact
+   * @param columns The instructions
+   */
+  synchronized void put(int artefactId, InstructionColumns columns) {
+    Objects.requireNonNull(columns);
+    var size = columns.estimatedBytes();
+    if (size > maxBytes) {
+      return;
+    }
+    var previous = entries.put(artefactId, columns);
+    if (previous != null) {
+      bytes -= previous.estimatedBytes();
+    }
+    bytes += size;
+    var iterator = entries.values().iterator();
+    while (bytes > maxBytes) {
+      bytes -= iterator.next().estimatedBytes();
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes the instructions of an artefact from the cache.
+   * @param artefactId The id of the artefact
+   */
+  synchronized void invalidate(int artefactId) {
+    var previous = entries.remove(artefactId);
+    if (previous != null) {
+      bytes -= previous.estimatedBytes();
+    }
+  }
+
+  /**
+   * Gets the counters of the cache.
+   * @return The counters
+   */
+  public synchronized Stats stats() {
+    return new Stats(hits, segmentHits, misses, evictions, entries.size(), bytes, maxBytes);
+  }
+}
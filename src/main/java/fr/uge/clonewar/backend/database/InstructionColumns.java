@@ -0,0 +1,124 @@
+package fr.uge.clonewar.backend.database;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Represents the instructions of an artefact stored column by column.
+ * The i-th instruction is described by the i-th value of each column, which avoids
+ * allocating an object per instruction when a whole artefact is loaded.
+ * Columns are either arrays or views of a mapped segment file.
+ */
+public final class InstructionColumns {
+  // rough sizes of an object and of an array header on a 64-bit JVM
+  private static final int OBJECT_BYTES = 32;
+  private static final int ARRAY_HEADER_BYTES = 16;
+
+  private final IntBuffer lines;
+  private final LongBuffer hashes;
+  private final IntBuffer fileIds;
+  private final int size;
+
+  /**
+   * Creates the columns, the buffers are not copied.
+   * @param lines The lines of the instructions
+   * @param hashes The hashes of the instructions
+   * @param fileIds The file ids of the instructions
+   * @param size The number of instructions
+   */
+  InstructionColumns(IntBuffer lines, LongBuffer hashes, IntBuffer fileIds, int size) {
+    this.lines = lines;
+    this.hashes = hashes;
+    this.fileIds = fileIds;
+    this.size = size;
+  }
+
+  /**
+   * Gets the number of instructions.
+   * @return The number of instructions
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the line of an instruction.
+   * @param index The index of the instruction
+   * @return The line of the instruction
+   */
+  public int line(int index) {
+    Objects.checkIndex(index, size);
+    return lines.get(index);
+  }
+
+  /**
+   * Gets the hash of an instruction.
+   * @param index The index of the instruction
+   * @return The hash of the instruction
+   */
+  public long hash(int index) {
+    Objects.checkIndex(index, size);
+    return hashes.get(index);
+  }
+
+  /**
+   * Gets the file id of an instruction.
+   * @param index The index of the instruction
+   * @return The id of the file that contains the instruction
+   */
+  public int fileId(int index) {
+    Objects.checkIndex(index, size);
+    return fileIds.get(index);
+  }
+
+  /**
+   * Gets an estimation of the memory used by the columns.
+   * @return The estimated number of bytes
+   */
+  long estimatedBytes() {
+    return OBJECT_BYTES + 3L * ARRAY_HEADER_BYTES + (2L * Integer.BYTES + Long.BYTES) * size;
+  }
+
+  /**
+   * Builds the columns by appending instructions one after another.
+   */
+  static final class Builder {
+    private int[] lines = new int[16];
+    private long[] hashes = new long[16];
+    private int[] fileIds = new int[16];
+    private int size;
+
+    /**
+     * Appends an instruction.
+     * @param line The line of the instruction
+     * @param hash The hash of the instruction
+     * @param fileId The id of the file that contains the instruction
+     */
+    void add(int line, long hash, int fileId) {
+      if (size == lines.length) {
+        var capacity = size * 2;
+        lines = Arrays.copyOf(lines, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        fileIds = Arrays.copyOf(fileIds, capacity);
+      }
+      lines[size] = line;
+      hashes[size] = hash;
+      fileIds[size] = fileId;
+      size++;
+    }
+
+    /**
+     * Creates the columns, trimmed to the number of added instructions.
+     * @return The columns
+     */
+    InstructionColumns build() {
+      return new InstructionColumns(
+          IntBuffer.wrap(Arrays.copyOf(lines, size)),
+          LongBuffer.wrap(Arrays.copyOf(hashes, size)),
+          IntBuffer.wrap(Arrays.copyOf(fileIds, size)),
+          size);
+    }
+  }
+}
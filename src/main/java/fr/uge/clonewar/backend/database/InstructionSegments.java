@@ -0,0 +1,164 @@
+package fr.uge.clonewar.backend.database;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Stores the instructions of each indexed artefact in a segment file, one file per artefact.
+ * Segments are read through a memory mapping, comparisons get the instructions without a query nor a copy.
+ * The database stays the source of truth, a segment is a copy of the instructions of an artefact
+ * in the order they are read from the database, it is written once and replaced only if the artefact is indexed again.
+ * <p>
+ * A segment is a header (magic, number of instructions) followed by the hash, line and file id columns,
+ * in little endian.
+ */
+public final class InstructionSegments {
+  private static final int MAGIC = 0x434C5753;
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int INSTRUCTION_BYTES = Long.BYTES + 2 * Integer.BYTES;
+  private static final int MAX_INSTRUCTIONS = (Integer.MAX_VALUE - HEADER_BYTES) / INSTRUCTION_BYTES;
+  // mappings are reused between comparisons, the number of mappings of a process is limited
+  private static final int MAX_MAPPED_SEGMENTS = 1024;
+
+  private final Path directory;
+  private final LinkedHashMap<Integer, InstructionColumns> mapped = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, InstructionColumns> eldest) {
+      return size() > MAX_MAPPED_SEGMENTS;
+    }
+  };
+
+  /**
+   * Creates the segment store, the directory is created if it does not exist.
+   * @param directory The directory of the segments
+   * @throws IOException if the directory can not be created
+   */
+  InstructionSegments(Path directory) throws IOException {
+    Objects.requireNonNull(directory);
+    this.directory = Files.createDirectories(directory);
+  }
+
+  private Path segment(int artefactId) {
+    return directory.resolve(artefactId + ".seg");
+  }
+
+  /**
+   * Tells if the instructions of an artefact are stored in a segment.
+   * @param artefactId The id of the artefact
+   * @return true if the segment exists
+   */
+  boolean contains(int artefactId) {
+    return Files.exists(segment(artefactId));
+  }
+
+  /**
+   * Writes the segment of an artefact, replacing the previous one.
+   * The segment is written to a temporary file then moved, readers never see a partial segment.
+   * @param artefactId The id of the artefact
+   * @param instructions The instructions of the artefact
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if there are too many instructions to be mapped
+   */
+  void write(int artefactId, InstructionColumns instructions) throws IOException {
+    Objects.requireNonNull(instructions);
+    unmap(artefactId);
+    var size = instructions.size();
+    if (size > MAX_INSTRUCTIONS) {
+      throw new IllegalArgumentException("too many instructions to be mapped " + size);
+    }
+    var temporary = Files.createTempFile(directory, artefactId + "-", ".tmp");
+    try {
+      try (var channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) INSTRUCTION_BYTES * size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(size);
+        for (var i = 0; i < size; i++) {
+          buffer.putLong(instructions.hash(i));
+        }
+        for (var i = 0; i < size; i++) {
+          buffer.putInt(instructions.line(i));
+        }
+        for (var i = 0; i < size; i++) {
+          buffer.putInt(instructions.fileId(i));
+        }
+        buffer.force();
+      }
+      Files.move(temporary, segment(artefactId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Maps the segment of an artefact, the columns read the file directly.
+   * The most recently read segments stay mapped.
+   * @param artefactId The id of the artefact
+   * @return The instructions, or null if the artefact has no segment
+   * @throws IOException if an I/O error occurs or the segment is corrupted
+   */
+  InstructionColumns read(int artefactId) throws IOException {
+    synchronized (mapped) {
+      var columns = mapped.get(artefactId);
+      if (columns != null) {
+        return columns;
+      }
+    }
+    var columns = map(artefactId);
+    if (columns != null) {
+      synchronized (mapped) {
+        mapped.put(artefactId, columns);
+      }
+    }
+    return columns;
+  }
+
+  private InstructionColumns map(int artefactId) throws IOException {
+    MappedByteBuffer buffer;
+    try (var channel = FileChannel.open(segment(artefactId), StandardOpenOption.READ)) {
+      // the mapping stays valid once the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("invalid segment of artefact " + artefactId);
+    }
+    var size = buffer.getInt(Integer.BYTES);
+    if (size < 0 || buffer.capacity() != HEADER_BYTES + (long) INSTRUCTION_BYTES * size) {
+      throw new IOException("truncated segment of artefact " + artefactId);
+    }
+    var hashes = buffer.slice(HEADER_BYTES, Long.BYTES * size).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    var linesOffset = HEADER_BYTES + Long.BYTES * size;
+    var lines = buffer.slice(linesOffset, Integer.BYTES * size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    var fileIds = buffer.slice(linesOffset + Integer.BYTES * size, Integer.BYTES * size)
+        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    return new InstructionColumns(lines, hashes, fileIds, size);
+  }
+
+  /**
+   * Deletes the segment of an artefact if it exists.
+   * @param artefactId The id of the artefact
+   * @throws IOException if an I/O error occurs
+   */
+  void delete(int artefactId) throws IOException {
+    unmap(artefactId);
+    Files.deleteIfExists(segment(artefactId));
+  }
+
+  private void unmap(int artefactId) {
+    synchronized (mapped) {
+      mapped.remove(artefactId);
+    }
+  }
+}
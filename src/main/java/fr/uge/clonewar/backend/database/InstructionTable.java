@@ -1,12 +1,20 @@
 package fr.uge.clonewar.backend.database;
 
+import fr.uge.clonewar.Fingerprinting;
 import fr.uge.clonewar.Instruction;
 import io.helidon.dbclient.DbClient;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -24,17 +32,83 @@ public class InstructionTable {
     }
   }
 
-  private static final int MAX_CAPACITY = 25_000;
+  static final int DEFAULT_BATCH_SIZE = 25_000;
+  static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
   private final DbClient dbClient;
+  private final DbClient readClient;
+  private final int batchSize;
+  private final Fingerprinting fingerprinting;
+  private final InstructionCache cache;
+  // null when instructions are only read from the database
+  private final InstructionSegments segments;
   private final ArrayList<InstructionRow> buffer = new ArrayList<>();
+  // files of which a batch was rolled back, the buffer is shared so the failure is reported to each artefact
+  private final HashSet<Integer> failedFiles = new HashSet<>();
 
   /**
    * Creates an instance of the entity.
    * @param dbClient The database connection
    */
   public InstructionTable(DbClient dbClient) {
+    this(dbClient, dbClient, DEFAULT_BATCH_SIZE, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param batchSize The number of buffered instructions inserted at once
+   * @param cacheSize The maximum number of bytes of loaded instructions kept in memory, 0 disables the cache
+   * @throws IllegalArgumentException if batchSize is lower than 1 or cacheSize is negative
+   */
+  public InstructionTable(DbClient dbClient, DbClient readClient, int batchSize, long cacheSize) {
+    this(dbClient, readClient, batchSize, cacheSize, Fingerprinting.DEFAULT);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param batchSize The number of buffered instructions inserted at once
+   * @param cacheSize The maximum number of bytes of loaded instructions kept in memory, 0 disables the cache
+   * @param fingerprinting How the fingerprints of the inserted instructions are computed
+   * @throws IllegalArgumentException if batchSize is lower than 1 or cacheSize is negative
+   */
+  public InstructionTable(DbClient dbClient, DbClient readClient, int batchSize, long cacheSize,
+                          Fingerprinting fingerprinting) {
+    this(dbClient, readClient, batchSize, cacheSize, fingerprinting, Optional.empty());
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param batchSize The number of buffered instructions inserted at once
+   * @param cacheSize The maximum number of bytes of loaded instructions kept in memory, 0 disables the cache
+   * @param fingerprinting How the fingerprints of the inserted instructions are computed
+   * @param segmentDirectory The directory of the segment files of the indexed artefacts, empty to read the database only
+   * @throws IllegalArgumentException if batchSize is lower than 1 or cacheSize is negative
+   * @throws UncheckedIOException if the segment directory can not be created
+   */
+  public InstructionTable(DbClient dbClient, DbClient readClient, int batchSize, long cacheSize,
+                          Fingerprinting fingerprinting, Optional<Path> segmentDirectory) {
     Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
+    Objects.requireNonNull(fingerprinting);
+    Objects.requireNonNull(segmentDirectory);
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize < 1");
+    }
     this.dbClient = dbClient;
+    this.readClient = readClient;
+    this.batchSize = batchSize;
+    this.fingerprinting = fingerprinting;
+    this.cache = new InstructionCache(cacheSize);
+    try {
+      this.segments = segmentDirectory.isPresent() ? new InstructionSegments(segmentDirectory.orElseThrow()) : null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
     createTable();
   }
 
@@ -50,44 +124,110 @@ public class InstructionTable {
   /**
    * Insert a row to a buffer that will make a unique insertion when he will be full.
    * Prevents database spamming due to massive insertions
+   * The buffer is shared by artefacts indexed at the same time.
    * @param instruction The row to be inserted
+   * @throws IllegalStateException if the buffer was full and could not be inserted
    */
-  public void bufferedInsert(InstructionRow instruction) {
+  public synchronized void bufferedInsert(InstructionRow instruction) {
     Objects.requireNonNull(instruction);
 
     buffer.add(instruction);
 
-    if (buffer.size() >= MAX_CAPACITY) {
+    if (buffer.size() >= batchSize) {
       flushBuffer();
     }
   }
 
   /**
    * Flush the buffer and insert instructions to database.
+   * Instructions are sent as one batch of a prepared statement within a single transaction.
+   * The buffer is emptied even if the transaction fails, its files are then reported by {@link #requireInserted}.
+   * @throws IllegalStateException if the instructions could not be inserted
    */
-  public void flushBuffer() {
+  public synchronized void flushBuffer() {
     if (buffer.isEmpty()) {
       return;
     }
 
-    var values = buffer.stream()
-        .map(row -> "(" + row.instruction.line() + ", " + row.instruction.hash() + ", " + row.fileId + ")")
-        .collect(Collectors.joining(", "));
-
-    dbClient.execute(exec -> exec.insert("INSERT INTO instruction(line, hash, fileId) VALUES " + values))
-        .exceptionally((t -> {
-          t.printStackTrace();
-          return null;
-        })).await();
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      connection.setAutoCommit(false);
+      try (var statement = connection.prepareStatement("INSERT INTO instruction(line, hash, fileId) VALUES (?, ?, ?)")) {
+        for (var row : buffer) {
+          statement.setInt(1, row.instruction.line());
+          statement.setLong(2, row.instruction.hash());
+          statement.setInt(3, row.fileId);
+          statement.addBatch();
+        }
+        statement.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      buffer.forEach(row -> failedFiles.add(row.fileId));
+      throw new IllegalStateException("Instruction insertion failed", e);
+    } finally {
+      buffer.clear();
+    }
+  }
 
-    buffer.clear();
+  /**
+   * Checks that every buffered instruction of some files has been inserted,
+   * to be called once the buffer has been flushed after the last instruction of an artefact.
+   * @param fileIds The ids of the files of an artefact
+   * @throws IllegalStateException if a batch containing instructions of one of the files failed
+   */
+  public synchronized void requireInserted(Collection<Integer> fileIds) {
+    Objects.requireNonNull(fileIds);
+    if (failedFiles.isEmpty()) {
+      return;
+    }
+    var failed = false;
+    for (var fileId : fileIds) {
+      failed |= failedFiles.remove(fileId);
+    }
+    if (failed) {
+      throw new IllegalStateException("Instructions of the artefact were not inserted");
+    }
   }
 
   /**
    * Gets instructions of a given artefact.
-   * @return The list of instructions
+   * Instructions are served from the cache when the artefact has been loaded recently,
+   * then from the segment of the artefact if it has one, without querying the database.
+   * @return The instructions stored column by column
    */
-  public List<InstructionRow> getAll(int artefactId) {
+  public InstructionColumns getAll(int artefactId) {
+    var cached = cache.get(artefactId);
+    if (cached != null) {
+      return cached;
+    }
+    if (segments != null) {
+      try {
+        var mapped = segments.read(artefactId);
+        if (mapped != null) {
+          // already in memory through the page cache
+          cache.segmentHit();
+          return mapped;
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    cache.miss();
+
+    var failed = new AtomicBoolean();
+    var instructions = load(artefactId, failed);
+    if (!failed.get()) {
+      cache.put(artefactId, instructions);
+    }
+    return instructions;
+  }
+
+  private InstructionColumns load(int artefactId, AtomicBoolean failed) {
     var query = """
       SELECT line, hash, fileId
       FROM artefact AS a
@@ -95,20 +235,90 @@ public class InstructionTable {
       JOIN instruction AS i ON f.id = i.fileId
       WHERE a.id = ?
       """;
-    return dbClient.execute(exec -> exec.query(query, artefactId))
-        .map(dbRow ->
-            new InstructionRow(
-              new Instruction(
-                dbRow.column("line").as(Integer.class),
-                dbRow.column("hash").as(Integer.class)
-              ),
+    var columns = new InstructionColumns.Builder();
+    readClient.execute(exec -> exec.query(query, artefactId))
+        .forEach(dbRow ->
+            columns.add(
+              dbRow.column("line").as(Integer.class),
+              dbRow.column("hash").as(Long.class),
               dbRow.column("fileId").as(Integer.class)
             )
-        ).collectList()
-        .exceptionally((t -> {
+        ).exceptionally((t -> {
             t.printStackTrace();
+            failed.set(true);
           return null;
         })).await();
+    return columns.build();
+  }
+
+  /**
+   * Removes the cached instructions and the segment of an artefact, to be called when instructions are added to it.
+   * @param artefactId The id of the artefact
+   */
+  public void invalidate(int artefactId) {
+    cache.invalidate(artefactId);
+    if (segments != null) {
+      try {
+        segments.delete(artefactId);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Writes the instructions of an artefact stored in the database to its segment,
+   * to be called once every instruction of the artefact is inserted.
+   * Does nothing if segments are disabled.
+   * @param artefactId The id of the artefact
+   */
+  public void writeSegment(int artefactId) {
+    if (segments == null) {
+      return;
+    }
+    var failed = new AtomicBoolean();
+    var instructions = load(artefactId, failed);
+    if (failed.get()) {
+      return;
+    }
+    try {
+      segments.write(artefactId, instructions);
+    } catch (IOException | IllegalArgumentException e) {
+      // comparisons keep reading the database
+      System.err.println("Segment of artefact " + artefactId + " not written: " + e.getMessage());
+    }
   }
 
+  /**
+   * Tells if the instructions of indexed artefacts are written to segments.
+   * @return true if segments are enabled
+   */
+  public boolean segmentsEnabled() {
+    return segments != null;
+  }
+
+  /**
+   * Tells if the instructions of an artefact are read from a segment.
+   * @param artefactId The id of the artefact
+   * @return true if segments are enabled and the artefact has one
+   */
+  public boolean hasSegment(int artefactId) {
+    return segments != null && segments.contains(artefactId);
+  }
+
+  /**
+   * Gets how the fingerprints of the inserted instructions are computed.
+   * @return The fingerprinting
+   */
+  public Fingerprinting fingerprinting() {
+    return fingerprinting;
+  }
+
+  /**
+   * Gets the counters of the instruction cache.
+   * @return The counters
+   */
+  public InstructionCache.Stats cacheStats() {
+    return cache.stats();
+  }
 }
@@ -0,0 +1,214 @@
+package fr.uge.clonewar.backend.database;
+
+import fr.uge.clonewar.backend.model.Artefact;
+import fr.uge.clonewar.backend.model.Job;
+import io.helidon.dbclient.DbClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Represents an analysis Job entity of the database.
+ */
+public class JobTable {
+  /**
+   * Represents a Row of the Job entity.
+   * @param mainJar The path of the uploaded jar that contains .class
+   * @param sourceJar The path of the uploaded jar that contains .java
+   * @param submissionDate The submission date
+   */
+  public record JobRow(String mainJar, String sourceJar, long submissionDate) {
+    public JobRow {
+      Objects.requireNonNull(mainJar);
+      Objects.requireNonNull(sourceJar);
+    }
+  }
+
+  private final DbClient dbClient;
+  private final DbClient readClient;
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection
+   */
+  public JobTable(DbClient dbClient) {
+    this(dbClient, dbClient);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   */
+  public JobTable(DbClient dbClient, DbClient readClient) {
+    Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
+    this.dbClient = dbClient;
+    this.readClient = readClient;
+    createTable();
+  }
+
+  private void createTable() {
+    dbClient.execute(exec -> exec.update("CREATE TABLE IF NOT EXISTS job(id INTEGER, status VARCHAR, mainJar VARCHAR, " +
+            "sourceJar VARCHAR, artefactId INTEGER, error VARCHAR, submissionDate INTEGER, PRIMARY KEY(id))"))
+        .exceptionally(t -> {
+          System.err.println(t.getMessage());
+          return null;
+        }).await();
+  }
+
+  /**
+   * Insert a queued job to the database.
+   * @param job The row to be inserted
+   * @return The id autogenerated by the database
+   */
+  public int insert(JobRow job) {
+    Objects.requireNonNull(job);
+    return dbClient.execute(exec ->
+            exec.query("INSERT INTO job(status, mainJar, sourceJar, submissionDate) VALUES (?, ?, ?, ?) RETURNING id",
+                Job.Status.QUEUED.name(), job.mainJar, job.sourceJar, job.submissionDate)
+        ).first()
+        .map(row -> row.column("id").as(Integer.class))
+        .await();
+  }
+
+  /**
+   * Updates the status of a job.
+   * @param id The id of the job
+   * @param status The new status
+   */
+  public void updateStatus(int id, Job.Status status) {
+    Objects.requireNonNull(status);
+    dbClient.execute(exec -> exec.update("UPDATE job SET status = ? WHERE id = ?", status.name(), id))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Marks a job as done.
+   * @param id The id of the job
+   * @param artefactId The id of the indexed artefact
+   * @param fingerprints The fingerprints of the indexed artefact
+   * @param instructions The insertion of the instructions of the indexed artefact
+   */
+  public void complete(int id, int artefactId, Job.Fingerprints fingerprints, Job.Instructions instructions) {
+    Objects.requireNonNull(fingerprints);
+    Objects.requireNonNull(instructions);
+    dbClient.execute(exec -> exec.update(
+            "UPDATE job SET status = ?, artefactId = ?, fingerprints = ?, keptFingerprints = ?, " +
+                "insertedInstructions = ?, insertionMillis = ? WHERE id = ?",
+            Job.Status.DONE.name(), artefactId, fingerprints.computed(), fingerprints.kept(),
+            instructions.inserted(), instructions.millis(), id))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Marks a job as failed.
+   * @param id The id of the job
+   * @param error The reason of the failure
+   */
+  public void fail(int id, String error) {
+    Objects.requireNonNull(error);
+    dbClient.execute(exec -> exec.update("UPDATE job SET status = ?, error = ? WHERE id = ?",
+            Job.Status.FAILED.name(), error, id))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Gets the job of the given id.
+   * @param id The id of a job
+   * @return The job, or an empty optional if there is no such job
+   */
+  public Optional<Job> get(int id) {
+    var query = """
+        SELECT j.id AS id, status, error, artefactId, jarName, insertionDate, fingerprints, keptFingerprints,
+          insertedInstructions, insertionMillis
+        FROM job AS j
+        LEFT JOIN artefact AS a ON a.id = j.artefactId
+        WHERE j.id = ?
+        """;
+    return readClient.execute(exec -> exec.query(query, id))
+        .first()
+        .map(dbRow -> {
+          var artefactId = dbRow.column("artefactId").as(Integer.class);
+          var artefact = artefactId == null ? null : new Artefact(
+              artefactId,
+              dbRow.column("jarName").as(String.class),
+              dbRow.column("insertionDate").as(Long.class));
+          // jobs completed before the fingerprints were counted have none,
+          // the driver gives an Integer or a Long depending on the value
+          var computed = (Number) dbRow.column("fingerprints").value();
+          var fingerprints = computed == null ? null : new Job.Fingerprints(
+              computed.longValue(),
+              ((Number) dbRow.column("keptFingerprints").value()).longValue());
+          var inserted = (Number) dbRow.column("insertedInstructions").value();
+          var instructions = inserted == null ? null : new Job.Instructions(
+              inserted.longValue(),
+              ((Number) dbRow.column("insertionMillis").value()).longValue());
+          return new Job(
+              dbRow.column("id").as(Integer.class),
+              Job.Status.valueOf(dbRow.column("status").as(String.class)),
+              artefact,
+              fingerprints,
+              instructions,
+              dbRow.column("error").as(String.class));
+        })
+        .toOptionalSingle()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return Optional.empty();
+        })).await();
+  }
+
+  /**
+   * Marks every job with the given status as failed.
+   * @param status The status of the jobs to fail
+   * @param error The reason of the failure
+   */
+  public void failAll(Job.Status status, String error) {
+    Objects.requireNonNull(status);
+    Objects.requireNonNull(error);
+    dbClient.execute(exec -> exec.update("UPDATE job SET status = ?, error = ? WHERE status = ?",
+            Job.Status.FAILED.name(), error, status.name()))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+  }
+
+  /**
+   * Gets the jobs waiting to be run, in submission order.
+   * @return The rows of the queued jobs by job id
+   */
+  public Map<Integer, JobRow> getQueued() {
+    var query = """
+        SELECT id, mainJar, sourceJar, submissionDate
+        FROM job
+        WHERE status = ?
+        ORDER BY id
+        """;
+    var jobs = new LinkedHashMap<Integer, JobRow>();
+    readClient.execute(exec -> exec.query(query, Job.Status.QUEUED.name()))
+        .forEach(row -> jobs.put(
+            row.column("id").as(Integer.class),
+            new JobRow(
+                row.column("mainJar").as(String.class),
+                row.column("sourceJar").as(String.class),
+                row.column("submissionDate").as(Long.class)))
+        ).exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+    return jobs;
+  }
+}
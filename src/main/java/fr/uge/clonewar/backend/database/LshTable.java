@@ -0,0 +1,238 @@
+package fr.uge.clonewar.backend.database;
+
+import io.helidon.dbclient.DbClient;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Represents the LSH buckets of the MinHash signatures of the artefacts.
+ * Artefacts sharing a bucket are likely to be similar, they are the only ones compared exactly.
+ */
+public class LshTable {
+  /**
+   * Default number of bands, with DEFAULT_ROWS artefacts of Jaccard similarity 0.5 share a bucket 87% of the time
+   * and those of similarity 0.2 5% of the time.
+   * The percentage of a clone is a containment, a small artefact copied in a large one has a low Jaccard similarity,
+   * so the database disables LSH unless lsh-bands is set.
+   */
+  public static final int DEFAULT_BANDS = 32;
+  /**
+   * Default number of values of a band.
+   */
+  public static final int DEFAULT_ROWS = 4;
+
+  private final DbClient dbClient;
+  private final DbClient readClient;
+  private final int bands;
+  private final int rows;
+
+  /**
+   * Creates an instance of the entity with the default parameters.
+   * @param dbClient The database connection
+   */
+  public LshTable(DbClient dbClient) {
+    this(dbClient, dbClient, DEFAULT_BANDS, DEFAULT_ROWS);
+  }
+
+  /**
+   * Creates an instance of the entity.
+   * Buckets computed with other parameters are removed, the artefacts have to be sketched again.
+   * @param dbClient The database connection used to write
+   * @param readClient The database connection used to read
+   * @param bands The number of bands of a signature, 0 disables the candidate selection
+   * @param rows The number of values of a band
+   * @throws IllegalArgumentException if bands is negative or rows is lower than 1
+   * @throws IllegalStateException if the buckets of other parameters could not be removed
+   */
+  public LshTable(DbClient dbClient, DbClient readClient, int bands, int rows) {
+    Objects.requireNonNull(dbClient);
+    Objects.requireNonNull(readClient);
+    if (bands < 0) {
+      throw new IllegalArgumentException("bands < 0");
+    }
+    if (rows < 1) {
+      throw new IllegalArgumentException("rows < 1");
+    }
+    this.dbClient = dbClient;
+    this.readClient = readClient;
+    this.bands = bands;
+    this.rows = rows;
+    createTable();
+    if (enabled()) {
+      resetOnParameterChange();
+    }
+  }
+
+  private void createTable() {
+    for (var sql : List.of(
+        "CREATE TABLE IF NOT EXISTS lsh_band(bucket INTEGER, artefactId INTEGER, PRIMARY KEY(bucket, artefactId)) WITHOUT ROWID",
+        "CREATE INDEX IF NOT EXISTS lsh_band_artefact ON lsh_band(artefactId, bucket)",
+        "CREATE TABLE IF NOT EXISTS lsh_artefact(artefactId INTEGER, PRIMARY KEY(artefactId))",
+        "CREATE TABLE IF NOT EXISTS lsh_parameters(bands INTEGER, rows INTEGER)")) {
+      dbClient.execute(exec -> exec.update(sql))
+          .exceptionally(t -> {
+            System.err.println(t.getMessage());
+            return null;
+          }).await();
+    }
+  }
+
+  private void resetOnParameterChange() {
+    var current = readClient.execute(exec -> exec.query("SELECT bands, rows FROM lsh_parameters"))
+        .map(row -> List.of(row.column("bands").as(Integer.class), row.column("rows").as(Integer.class)))
+        .collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return List.of();
+        })).await();
+    if (current.equals(List.of(List.of(bands, rows)))) {
+      return;
+    }
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      connection.setAutoCommit(false);
+      try (var statement = connection.createStatement()) {
+        statement.executeUpdate("DELETE FROM lsh_band");
+        statement.executeUpdate("DELETE FROM lsh_artefact");
+        statement.executeUpdate("DELETE FROM lsh_parameters");
+        statement.executeUpdate("INSERT INTO lsh_parameters(bands, rows) VALUES (" + bands + ", " + rows + ")");
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      // buckets of other parameters would be compared to the new ones
+      throw new IllegalStateException("LSH parameters not reset", e);
+    }
+  }
+
+  /**
+   * Tells if candidates are selected by LSH.
+   * @return false if the number of bands is 0
+   */
+  public boolean enabled() {
+    return bands > 0;
+  }
+
+  /**
+   * Gets the number of bands of a signature.
+   * @return The number of bands
+   */
+  public int bands() {
+    return bands;
+  }
+
+  /**
+   * Gets the number of values of a band.
+   * @return The number of values
+   */
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * Stores the buckets of an artefact and marks it sketched, within a single transaction.
+   * @param artefactId The id of the artefact
+   * @param buckets The buckets of the signatures of the artefact and of its files
+   * @throws IllegalStateException if the buckets could not be inserted
+   */
+  public void insertAll(int artefactId, Set<Long> buckets) {
+    Objects.requireNonNull(buckets);
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      connection.setAutoCommit(false);
+      try (var statement = connection.prepareStatement(
+          "INSERT OR IGNORE INTO lsh_band(bucket, artefactId) VALUES (?, ?)");
+           var marker = connection.prepareStatement(
+               "INSERT OR IGNORE INTO lsh_artefact(artefactId) VALUES (?)")) {
+        for (var bucket : buckets) {
+          statement.setLong(1, bucket);
+          statement.setInt(2, artefactId);
+          statement.addBatch();
+        }
+        statement.executeBatch();
+        marker.setInt(1, artefactId);
+        marker.executeUpdate();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("LSH bucket insertion failed", e);
+    }
+  }
+
+  /**
+   * Tells if the buckets of an artefact are stored.
+   * @param artefactId The id of the artefact
+   * @return true if the artefact is sketched
+   */
+  public boolean isSketched(int artefactId) {
+    return readClient.execute(exec -> exec.query("SELECT 1 FROM lsh_artefact WHERE artefactId = ?", artefactId))
+        .first()
+        .map(row -> true)
+        .toOptionalSingle()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return Optional.empty();
+        })).await()
+        .isPresent();
+  }
+
+  /**
+   * Gets the ids of the indexed artefacts that are not sketched.
+   * @return The ids, in insertion order
+   */
+  public List<Integer> getMissing() {
+    var query = """
+        SELECT id
+        FROM artefact AS a
+        WHERE indexed = 1 AND NOT EXISTS (SELECT 1 FROM lsh_artefact WHERE artefactId = a.id)
+        ORDER BY id
+        """;
+    return readClient.execute(exec -> exec.query(query))
+        .map(row -> row.column("id").as(Integer.class))
+        .collectList()
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return List.of();
+        })).await();
+  }
+
+  /**
+   * Gets artefacts sharing a bucket with a sketched artefact, and artefacts not sketched yet
+   * since nothing tells they are not similar.
+   * @param artefactId The id of a sketched artefact
+   * @return The ids of the candidates, the given artefact excluded
+   */
+  public Set<Integer> candidates(int artefactId) {
+    var query = """
+        SELECT other.artefactId AS artefactId
+        FROM lsh_band AS ref
+        JOIN lsh_band AS other ON other.bucket = ref.bucket
+        WHERE ref.artefactId = ? AND other.artefactId != ref.artefactId
+        UNION
+        SELECT id AS artefactId
+        FROM artefact AS a
+        WHERE id != ? AND NOT EXISTS (SELECT 1 FROM lsh_artefact WHERE artefactId = a.id)
+        """;
+    var candidates = new HashSet<Integer>();
+    readClient.execute(exec -> exec.query(query, artefactId, artefactId))
+        .forEach(row -> candidates.add(row.column("artefactId").as(Integer.class)))
+        .exceptionally((t -> {
+          t.printStackTrace();
+          return null;
+        })).await();
+    return candidates;
+  }
+}
@@ -0,0 +1,119 @@
+package fr.uge.clonewar.backend.database;
+
+import io.helidon.dbclient.DbClient;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Upgrades the schema of an existing database.
+ * The version of the schema is stored in the SQLite user_version pragma, each migration
+ * brings the schema from its index to the next version within a single transaction.
+ */
+final class SchemaMigration {
+  private static final List<List<String>> MIGRATIONS = List.of(
+      // 1: secondary indexes covering joins and filters of the tables
+      List.of(
+          "CREATE INDEX IF NOT EXISTS file_artefact ON file(artefactId)",
+          "CREATE INDEX IF NOT EXISTS instruction_file_line_hash ON instruction(fileId, line, hash)",
+          "CREATE INDEX IF NOT EXISTS clone_artefact ON clone(artefactId, cloneId, percentage)"
+      ),
+      // 2: clones are computed once per artefact when it is indexed
+      List.of(
+          "ALTER TABLE artefact ADD COLUMN clonesComputed INTEGER NOT NULL DEFAULT 0",
+          "CREATE INDEX IF NOT EXISTS artefact_clones_computed ON artefact(clonesComputed, id)",
+          "CREATE INDEX IF NOT EXISTS clone_clone ON clone(cloneId, artefactId)"
+      ),
+      // 3: artefacts are inserted not indexed, existing ones are complete
+      List.of(
+          "ALTER TABLE artefact ADD COLUMN indexed INTEGER NOT NULL DEFAULT 1"
+      ),
+      // 4: keyset pagination of artefacts and clones
+      List.of(
+          "CREATE INDEX IF NOT EXISTS artefact_jar_name ON artefact(jarName)",
+          "CREATE INDEX IF NOT EXISTS clone_artefact_percentage ON clone(artefactId, percentage DESC, cloneId)"
+      ),
+      // 5: matched lines are stored as ranges, pairs of the old diff table are merged by diagonal
+      List.of(
+          "CREATE TABLE IF NOT EXISTS diff(id INTEGER, referenceId INTEGER, cloneId INTEGER, " +
+              "lineReference INTEGER, lineClone INTEGER, PRIMARY KEY(id))",
+          """
+          INSERT INTO diff_range(referenceId, cloneId, referenceStart, referenceEnd, cloneStart, cloneEnd)
+          SELECT referenceId, cloneId, MIN(lineReference), MAX(lineReference), MIN(lineClone), MAX(lineClone)
+          FROM (
+            SELECT referenceId, cloneId, lineReference, lineClone, lineReference - ROW_NUMBER() OVER (
+              PARTITION BY referenceId, cloneId, lineReference - lineClone ORDER BY lineReference) AS run
+            FROM (SELECT DISTINCT referenceId, cloneId, lineReference, lineClone FROM diff)
+          )
+          GROUP BY referenceId, cloneId, lineReference - lineClone, run
+          """,
+          "DROP TABLE diff",
+          "CREATE INDEX IF NOT EXISTS diff_range_reference_clone ON diff_range(referenceId, cloneId)"
+      ),
+      // 6: instructions are hashed by a 64-bit polynomial hash, those hashed by the additive 32-bit one
+      // cannot be rehashed without their class files, they are only compared to each other
+      List.of(
+          "ALTER TABLE artefact ADD COLUMN fingerprint VARCHAR NOT NULL DEFAULT 'sum32-5'",
+          "CREATE INDEX IF NOT EXISTS artefact_fingerprint ON artefact(fingerprint, indexed, id)"
+      ),
+      // 7: done jobs tell how many fingerprints were computed and kept by the winnowing
+      List.of(
+          "ALTER TABLE job ADD COLUMN fingerprints INTEGER",
+          "ALTER TABLE job ADD COLUMN keptFingerprints INTEGER"
+      ),
+      // 8: done jobs tell how many instructions were inserted and how long it took
+      List.of(
+          "ALTER TABLE job ADD COLUMN insertedInstructions INTEGER",
+          "ALTER TABLE job ADD COLUMN insertionMillis INTEGER"
+      ),
+      // 9: pairs that are not candidates are stored without being compared, existing ones cannot be told apart
+      List.of(
+          "ALTER TABLE clone ADD COLUMN skipped INTEGER NOT NULL DEFAULT 0"
+      )
+  );
+
+  /**
+   * Applies the migrations not yet applied to the database.
+   * @param dbClient The database connection
+   * @throws IllegalStateException if a migration fails
+   */
+  static void migrate(DbClient dbClient) {
+    Objects.requireNonNull(dbClient);
+    try (var connection = dbClient.unwrap(Connection.class).await()) {
+      var version = version(connection);
+      for (var i = version; i < MIGRATIONS.size(); i++) {
+        apply(connection, MIGRATIONS.get(i), i + 1);
+      }
+      if (version < MIGRATIONS.size()) {
+        System.out.println("Database schema migrated from version " + version + " to " + MIGRATIONS.size());
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Schema migration failed", e);
+    }
+  }
+
+  private static int version(Connection connection) throws SQLException {
+    try (var statement = connection.createStatement();
+         var result = statement.executeQuery("PRAGMA user_version")) {
+      return result.next() ? result.getInt(1) : 0;
+    }
+  }
+
+  private static void apply(Connection connection, List<String> migration, int version) throws SQLException {
+    connection.setAutoCommit(false);
+    try (var statement = connection.createStatement()) {
+      for (var sql : migration) {
+        statement.executeUpdate(sql);
+      }
+      statement.executeUpdate("PRAGMA user_version = " + version);
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+}
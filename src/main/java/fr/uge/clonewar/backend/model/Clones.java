@@ -13,8 +13,10 @@ public record Clones(Artefact reference, List<Clone> clones) {
    * Represents a Clone
    * @param artefact The compared artefact
    * @param percentage the percentage of similarity
+   * @param skipped true if the artefacts were not compared, not being candidates, the percentage is then 0
+   *                but not measured
    */
-  public record Clone(Artefact artefact, int percentage) {
+  public record Clone(Artefact artefact, int percentage, boolean skipped) {
     public Clone {
       Objects.requireNonNull(artefact);
     }
@@ -0,0 +1,17 @@
+package fr.uge.clonewar.backend.model;
+
+import java.util.Objects;
+
+/**
+ * Represents the similarity of a pair of files that will be sent by the api
+ * @param reference The name of the reference file
+ * @param file The name of the file compared to
+ * @param shared The number of distinct fingerprints of the file found in the reference file
+ * @param percentage The percentage of the distinct fingerprints of the file found in the reference file
+ */
+public record FileSimilarity(String reference, String file, int shared, int percentage) {
+  public FileSimilarity {
+    Objects.requireNonNull(reference);
+    Objects.requireNonNull(file);
+  }
+}
@@ -0,0 +1,41 @@
+package fr.uge.clonewar.backend.model;
+
+import java.util.Objects;
+
+/**
+ * Represents an analysis Job item that will be sent by the api.
+ * @param id The job id
+ * @param status The progress of the job
+ * @param artefact The indexed artefact once the job is done, null otherwise
+ * @param fingerprints The fingerprints of the indexed artefact once the job is done, null otherwise
+ * @param instructions The insertion of the instructions of the artefact once the job is done, null otherwise
+ * @param error The reason of the failure if the job failed, null otherwise
+ */
+public record Job(int id, Status status, Artefact artefact, Fingerprints fingerprints, Instructions instructions,
+                  String error) {
+  /**
+   * Represents the progress of a job.
+   */
+  public enum Status {
+    QUEUED, RUNNING, DONE, FAILED
+  }
+
+  /**
+   * Represents the fingerprints computed when an artefact is indexed.
+   * @param computed The number of fingerprints of the artefact
+   * @param kept The number of fingerprints kept by the winnowing, stored in the database
+   */
+  public record Fingerprints(long computed, long kept) {}
+
+  /**
+   * Represents the insertion of the instructions of an artefact, from the analysis of its classes
+   * to the last batch, the throughput being inserted / millis.
+   * @param inserted The number of instruction rows inserted
+   * @param millis The elapsed time in milliseconds
+   */
+  public record Instructions(long inserted, long millis) {}
+
+  public Job {
+    Objects.requireNonNull(status);
+  }
+}
@@ -0,0 +1,19 @@
+package fr.uge.clonewar.backend.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Represents the similar pairs of files of two artefacts that will be sent by the api.
+ * The pairs are not every pair of files: fingerprints found in more than maxFilesPerHash files of one of the artefacts
+ * are not counted, and only the maxMatchesPerFile reference files sharing the most fingerprints with a file are kept.
+ * @param maxFilesPerHash The maximum number of files of an artefact a counted fingerprint is found in
+ * @param maxMatchesPerFile The maximum number of reference files kept for each file compared to
+ * @param files The pairs of files, by decreasing percentage
+ */
+public record SimilarFiles(int maxFilesPerHash, int maxMatchesPerFile, List<FileSimilarity> files) {
+  public SimilarFiles {
+    Objects.requireNonNull(files);
+    files = List.copyOf(files);
+  }
+}
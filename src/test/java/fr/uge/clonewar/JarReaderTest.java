@@ -0,0 +1,114 @@
+package fr.uge.clonewar;
+
+import fr.uge.clonewar.backend.FileStorage;
+import fr.uge.clonewar.utils.JarBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+public class JarReaderTest {
+
+  private static void assertSameAsZipFile(Path jar) throws IOException {
+    try (var reader = JarReader.open(jar);
+         var zip = new ZipFile(jar.toFile())) {
+      var zipEntries = Collections.list(zip.entries());
+      var entries = reader.entries();
+      Assertions.assertEquals(zipEntries.stream().map(ZipEntry::getName).toList(),
+          entries.stream().map(JarReader.Entry::name).toList());
+      for (var i = 0; i < entries.size(); i++) {
+        var entry = entries.get(i);
+        var zipEntry = zipEntries.get(i);
+        Assertions.assertEquals(zipEntry.getMethod(), entry.method());
+        Assertions.assertEquals(zipEntry.getSize(), entry.size());
+        try (var input = zip.getInputStream(zipEntry)) {
+          Assertions.assertArrayEquals(input.readAllBytes(), reader.read(entry));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSameAsZipFile() throws IOException {
+    try (var storage = new FileStorage()) {
+      var jar = new JarBuilder(storage.storageDir(), "Reader");
+      jar.addFile("fr.uge.test.Stored",
+          """
+          package fr.uge.test;
+
+          public class Stored {
+            public static int factorial(int n) {
+              var fact = 1;
+              for (var i = 1; i <= n; i++) {
+                fact = fact * i;
+              }
+              return fact;
+            }
+          }
+          """, ZipEntry.STORED);
+      jar.addFile("fr.uge.test.Deflated",
+          """
+          package fr.uge.test;
+
+          public class Deflated {
+            public static void main(String[] args) {
+              System.out.println(10);
+              System.out.println(10);
+              System.out.println(10);
+            }
+          }
+          """, ZipEntry.DEFLATED);
+      var artefact = jar.get();
+
+      for (var path : new Path[] { artefact.main(), artefact.source() }) {
+        try (var reader = JarReader.open(path)) {
+          var methods = new ArrayList<Integer>();
+          reader.entries().forEach(entry -> methods.add(entry.method()));
+          Assertions.assertTrue(methods.contains(ZipEntry.STORED));
+          Assertions.assertTrue(methods.contains(ZipEntry.DEFLATED));
+        }
+        assertSameAsZipFile(path);
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptedStoredSize() throws IOException {
+    try (var storage = new FileStorage()) {
+      var jar = new JarBuilder(storage.storageDir(), "Corrupted");
+      jar.addFile("fr.uge.test.Stored",
+          """
+          package fr.uge.test;
+
+          public class Stored {}
+          """, ZipEntry.STORED);
+      var path = jar.get().main();
+
+      // the size of each stored entry of the central directory is larger than the archive
+      var bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+      for (var position = 0; position + 28 <= bytes.limit(); position++) {
+        if (bytes.getInt(position) == 0x02014b50 && bytes.getShort(position + 10) == ZipEntry.STORED) {
+          bytes.putInt(position + 24, Integer.MAX_VALUE);
+        }
+      }
+      Files.write(path, bytes.array());
+
+      try (var reader = JarReader.open(path)) {
+        var stored = reader.entries().stream().filter(entry -> entry.method() == ZipEntry.STORED).toList();
+        Assertions.assertFalse(stored.isEmpty());
+        for (var entry : stored) {
+          Assertions.assertThrows(ZipException.class, () -> reader.read(entry));
+        }
+      }
+    }
+  }
+}
@@ -4,12 +4,19 @@ import fr.uge.clonewar.backend.FileStorage;
 import fr.uge.clonewar.backend.database.Database;
 import fr.uge.clonewar.utils.JarBuilder;
 import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
 import io.helidon.dbclient.DbClient;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 
 public class ReadByteCodeTest {
@@ -211,4 +218,120 @@ public class ReadByteCodeTest {
       System.out.println(json);
     }
   }
+
+  @Test
+  public void testWinnowing() throws IOException {
+    try (var storage = new FileStorage()) {
+      var jar = new JarBuilder(storage.storageDir(), "Winnowing");
+      jar.addFile("fr.uge.test.Test",
+          """
+          package fr.uge.test;
+
+          public class Test {
+            public static int factorial(int n) {
+              var fact = 1;
+              for (var i = 1; i <= n; i++) {
+                fact = fact * i;
+              }
+              return fact;
+            }
+
+            public static void main(String[] args) {
+              System.out.println(factorial(10));
+              System.out.println(factorial(5) + factorial(3));
+            }
+          }
+          """);
+      var artefact = jar.get();
+      var files = Set.of("fr/uge/test/Test");
+
+      var all = new ArrayList<Instruction>();
+      new ReadByteCode(artefact.main()).analyze(files, (file, instruction) -> all.add(instruction));
+      var reader = new ReadByteCode(artefact.main(), new Fingerprinting(Fingerprinting.DEFAULT_WINDOW, 4));
+      var selected = new ArrayList<Instruction>();
+      reader.analyze(files, (file, instruction) -> selected.add(instruction));
+
+      Assertions.assertEquals(all.size(), reader.fingerprints());
+      Assertions.assertEquals(selected.size(), reader.selectedFingerprints());
+      Assertions.assertTrue(selected.size() < all.size());
+      // every window of fingerprints keeps one of them
+      var hashes = selected.stream().map(Instruction::hash).collect(Collectors.toSet());
+      for (var i = 0; i + 4 <= all.size(); i++) {
+        Assertions.assertTrue(all.subList(i, i + 4).stream().anyMatch(instruction -> hashes.contains(instruction.hash())));
+      }
+      Assertions.assertNotEquals(Fingerprinting.DEFAULT.scheme(), new Fingerprinting(Fingerprinting.DEFAULT_WINDOW, 4).scheme());
+    }
+  }
+
+  private static long directHash(int[] hashes, int start, int window) {
+    var modulus = BigInteger.valueOf(ReadByteCode.MODULUS);
+    var base = BigInteger.valueOf(ReadByteCode.BASE);
+    var hash = BigInteger.ZERO;
+    for (var k = 0; k < window; k++) {
+      var power = base.modPow(BigInteger.valueOf(window - 1 - k), modulus);
+      hash = hash.add(BigInteger.valueOf(ReadByteCode.value(hashes[start + k])).multiply(power));
+    }
+    return hash.mod(modulus).longValueExact();
+  }
+
+  @Test
+  public void testRollingHash() {
+    var random = new Random(0);
+    var hashes = random.ints(64).toArray();
+    for (var window = 1; window <= 16; window++) {
+      var fingerprints = ReadByteCode.fingerprints(hashes, hashes.length, window);
+      Assertions.assertEquals(hashes.length - window + 1, fingerprints.length);
+      for (var i = 0; i < fingerprints.length; i++) {
+        Assertions.assertEquals(directHash(hashes, i, window), fingerprints[i]);
+      }
+    }
+    // fewer instructions than a window make a single window
+    var fingerprints = ReadByteCode.fingerprints(hashes, 3, 5);
+    Assertions.assertArrayEquals(new long[] { directHash(hashes, 0, 3) }, fingerprints);
+  }
+
+  @Test
+  public void testReorderedInstructions() {
+    var hashes = new int[] { 1, 2, 3, 4, 5 };
+    var reordered = new int[] { 1, 3, 2, 4, 5 };
+    var fingerprint = ReadByteCode.fingerprints(hashes, hashes.length, hashes.length)[0];
+    Assertions.assertNotEquals(fingerprint, ReadByteCode.fingerprints(reordered, reordered.length, reordered.length)[0]);
+  }
+
+  @Test
+  public void testHashWindowConfig() throws IOException {
+    var config = Config.builder(
+            ConfigSources.create(Map.of("test.db.hash-window", "3")),
+            ConfigSources.classpath("application.yaml"))
+        .build()
+        .get("test.db");
+    var database = new Database(DbClient.create(config), config);
+    Assertions.assertEquals(new Fingerprinting(3, 1), database.instructionTable().fingerprinting());
+
+    try (var storage = new FileStorage()) {
+      var jar = new JarBuilder(storage.storageDir(), "HashWindow");
+      jar.addFile("fr.uge.test.Test",
+          """
+          package fr.uge.test;
+
+          public class Test {
+            public static int factorial(int n) {
+              var fact = 1;
+              for (var i = 1; i <= n; i++) {
+                fact = fact * i;
+              }
+              return fact;
+            }
+          }
+          """);
+      var artefact = jar.get();
+      var indexedArtefact = CloneDetectors.indexArtefact(database, artefact);
+      var instructions = database.instructionTable().getAll(indexedArtefact.id());
+
+      var reader = new ReadByteCode(artefact.main());
+      reader.analyze(Set.of("fr/uge/test/Test"), (file, instruction) -> {});
+      // a single class, windows of 3 instructions give 2 more fingerprints than windows of 5
+      Assertions.assertEquals(reader.fingerprints() + 2, instructions.size());
+    }
+  }
 }
@@ -3,12 +3,17 @@ package fr.uge.clonewar.backend;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.uge.clonewar.FileHashes;
 import fr.uge.clonewar.backend.model.Artefact;
 import fr.uge.clonewar.backend.model.Clones;
+import fr.uge.clonewar.backend.model.Diff;
+import fr.uge.clonewar.backend.model.SimilarFiles;
+import fr.uge.clonewar.backend.model.Job;
 import fr.uge.clonewar.utils.JarBuilder;
 import io.helidon.common.http.Http;
 import io.helidon.common.http.MediaType;
 import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
 import io.helidon.media.jsonp.JsonpSupport;
 import io.helidon.media.multipart.FileFormParams;
 import io.helidon.media.multipart.MultiPartSupport;
@@ -19,18 +24,27 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class ServerTest {
-  private static final Config config = Config.create().get("test");
+  private static FileStorage segments;
   private static WebServer webServer;
   private static WebClient webClient;
 
   @BeforeAll
   public static void startServer() {
+    // segments of a previous run would not match the recreated database
+    segments = new FileStorage();
+    var config = Config.builder(
+            ConfigSources.create(Map.of("test.db.segment-directory", segments.storageDir().toString())),
+            ConfigSources.classpath("application.yaml"))
+        .build()
+        .get("test");
     webServer = Server.startServer(config).await();
 
     webClient = WebClient.builder()
@@ -45,6 +59,7 @@ public class ServerTest {
   public static void stopServer() {
     webServer.shutdown()
         .await(2, TimeUnit.SECONDS);
+    segments.close();
   }
 
   @Test
@@ -90,11 +105,50 @@ public class ServerTest {
             .build())
         .await();
 
-    assertEquals(response.status(), Http.Status.OK_200);
+    assertEquals(response.status(), Http.Status.ACCEPTED_202);
 
     var content = response.content().as(String.class).await();
     var mapper = new ObjectMapper();
-    return mapper.readValue(content, Artefact.class);
+    var job = mapper.readValue(content, Job.class);
+    return awaitJob(job.id()).artefact();
+  }
+
+  private Job awaitJob(int id) throws JsonProcessingException {
+    var mapper = new ObjectMapper();
+    for (var i = 0; i < 100; i++) {
+      var response = webClient.get()
+          .path("jobs/" + id)
+          .request()
+          .await();
+      assertEquals(response.status(), Http.Status.OK_200);
+
+      var job = mapper.readValue(response.content().as(String.class).await(), Job.class);
+      assertNotEquals(job.status(), Job.Status.FAILED);
+      if (job.status() == Job.Status.DONE) {
+        assertNotNull(job.fingerprints());
+        assertTrue(job.fingerprints().kept() <= job.fingerprints().computed());
+        assertNotNull(job.instructions());
+        assertTrue(job.instructions().inserted() <= job.fingerprints().kept());
+        return job;
+      }
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+    throw new AssertionError("Job " + id + " not done");
+  }
+
+  @Test
+  public void testUnknownJob() {
+    var response = webClient.get()
+        .path("jobs/" + Integer.MAX_VALUE)
+        .request()
+        .await();
+    response.close();
+
+    assertEquals(response.status(), Http.Status.NOT_FOUND_404);
   }
 
   @Test
@@ -123,6 +177,80 @@ public class ServerTest {
     }
   }
 
+  @Test
+  public void testArtefactsNotModified() {
+    var response = webClient.get()
+        .path("artefacts")
+        .request()
+        .await();
+    response.close();
+    assertEquals(response.status(), Http.Status.OK_200);
+    var etag = response.headers().first(Http.Header.ETAG).orElseThrow();
+
+    var revalidation = webClient.get()
+        .path("artefacts")
+        .headers(headers -> {
+          headers.add(Http.Header.IF_NONE_MATCH, etag);
+          return headers;
+        })
+        .request()
+        .await();
+    revalidation.close();
+    assertEquals(revalidation.status(), Http.Status.NOT_MODIFIED_304);
+  }
+
+  @Test
+  public void testArtefactsPagination() throws JsonProcessingException {
+    var artefacts = getArtefacts();
+
+    var pages = new ArrayList<Artefact>();
+    var after = 0;
+    List<Artefact> page;
+    do {
+      var response = webClient.get()
+          .path("artefacts")
+          .queryParam("limit", "2")
+          .queryParam("after", "" + after)
+          .request()
+          .await();
+      assertEquals(response.status(), Http.Status.OK_200);
+      var content = response.content().as(String.class).await();
+      page = new ObjectMapper().readValue(content, new TypeReference<>() {});
+      assertTrue(page.size() <= 2);
+      pages.addAll(page);
+      if (!page.isEmpty()) {
+        after = page.get(page.size() - 1).id();
+      }
+    } while (!page.isEmpty());
+
+    assertEquals(artefacts, pages);
+  }
+
+  @Test
+  public void testInstructionCacheStats() throws JsonProcessingException {
+    var response = webClient.get()
+        .path("stats/instruction-cache")
+        .request()
+        .await();
+    assertEquals(response.status(), Http.Status.OK_200);
+
+    var content = response.content().as(String.class).await();
+    var stats = new ObjectMapper().readValue(content, new TypeReference<Map<String, Long>>() {});
+    assertTrue(stats.keySet().containsAll(List.of("hits", "segmentHits", "misses")));
+  }
+
+  @Test
+  public void testInvalidLimit() {
+    var response = webClient.get()
+        .path("artefacts")
+        .queryParam("limit", "0")
+        .request()
+        .await();
+    response.close();
+
+    assertEquals(response.status(), Http.Status.BAD_REQUEST_400);
+  }
+
   private List<Artefact> getArtefacts() throws JsonProcessingException {
     var response = webClient.get()
         .path("artefacts")
@@ -159,6 +287,31 @@ public class ServerTest {
     }
   }
 
+  @Test
+  public void testClonesUnknownCursor() throws IOException {
+    try (var storage = new FileStorage()) {
+      var jar = new JarBuilder(storage.storageDir(), "Test");
+      jar.addFile("fr.uge.test.Test",
+          """
+          package fr.uge.test;
+
+          public record Test(int a, int b) {}
+          """);
+      var artefact = postArtefact(jar.get());
+
+      // an artefact is not one of its clones
+      var response = webClient.get()
+          .path("clones/" + artefact.id())
+          .queryParam("limit", "2")
+          .queryParam("after", "" + artefact.id())
+          .request()
+          .await();
+      response.close();
+
+      assertEquals(response.status(), Http.Status.BAD_REQUEST_400);
+    }
+  }
+
   private Clones getClones(int id) throws JsonProcessingException {
     var response = webClient.get()
         .path("clones/" + id)
@@ -171,4 +324,82 @@ public class ServerTest {
     return mapper.readValue(content, new TypeReference<>() {});
   }
 
+  @Test
+  public void testDiff() throws IOException {
+    try (var storage = new FileStorage()) {
+      var content = """
+          package fr.uge.test;
+
+          public record Test(int a, int b) {
+            private void cc() {
+              System.out.println(a + b);
+            }
+          }
+          """;
+      var jar = new JarBuilder(storage.storageDir(), "Test");
+      jar.addFile("fr.uge.test.Test", content);
+      var jar2 = new JarBuilder(storage.storageDir(), "Test");
+      jar2.addFile("fr.uge.test.Test", content);
+      var reference = postArtefact(jar.get());
+      var clone = postArtefact(jar2.get());
+
+      var response = webClient.get()
+          .path("diff/" + reference.id() + "/" + clone.id())
+          .request()
+          .await();
+      assertEquals(response.status(), Http.Status.OK_200);
+
+      var json = response.content().as(String.class).await();
+      var mapper = new ObjectMapper();
+      var diff = mapper.readValue(json, new TypeReference<List<Diff.FileDiff>>() {});
+      assertFalse(diff.isEmpty());
+      assertEquals(diff.get(0).reference(), diff.get(0).file());
+    }
+  }
+
+  @Test
+  public void testSimilarFiles() throws IOException {
+    try (var storage = new FileStorage()) {
+      var content = """
+          package fr.uge.test;
+
+          public record Test(int a, int b) {
+            private void cc() {
+              System.out.println(a + b);
+            }
+          }
+          """;
+      var jar = new JarBuilder(storage.storageDir(), "Test");
+      jar.addFile("fr.uge.test.Test", content);
+      var jar2 = new JarBuilder(storage.storageDir(), "Test");
+      jar2.addFile("fr.uge.test.Test", content);
+      var reference = postArtefact(jar.get());
+      var clone = postArtefact(jar2.get());
+
+      var response = webClient.get()
+          .path("files/" + reference.id() + "/" + clone.id())
+          .queryParam("limit", "1")
+          .request()
+          .await();
+      assertEquals(response.status(), Http.Status.OK_200);
+
+      var json = response.content().as(String.class).await();
+      var mapper = new ObjectMapper();
+      var similarFiles = mapper.readValue(json, SimilarFiles.class);
+      assertEquals(similarFiles.maxMatchesPerFile(), FileHashes.MAX_MATCHES_PER_FILE);
+      var files = similarFiles.files();
+      assertEquals(files.size(), 1);
+      assertEquals(files.get(0).reference(), files.get(0).file());
+      assertEquals(files.get(0).percentage(), 100);
+    }
+  }
+
+  @Test
+  public void testSimilarFilesNotComputed() {
+    var response = webClient.get()
+        .path("files/" + Integer.MAX_VALUE + "/" + Integer.MAX_VALUE)
+        .request()
+        .await();
+    assertEquals(response.status(), Http.Status.NOT_FOUND_404);
+  }
 }
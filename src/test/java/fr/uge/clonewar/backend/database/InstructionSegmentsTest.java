@@ -0,0 +1,126 @@
+package fr.uge.clonewar.backend.database;
+
+import fr.uge.clonewar.CloneDetectors;
+import fr.uge.clonewar.backend.FileStorage;
+import fr.uge.clonewar.utils.JarBuilder;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.dbclient.DbClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InstructionSegmentsTest {
+  private static final String SOURCE = """
+      package fr.uge.test;
+
+      public class Test {
+        public static int factorial(int n) {
+          var fact = 1;
+          for (var i = 1; i <= n; i++) {
+            fact = fact * i;
+          }
+          return fact;
+        }
+      }
+      """;
+
+  private static Config config(Path directory, boolean segments) {
+    var values = new HashMap<>(Map.of(
+        "source", "jdbc",
+        // in memory, connections of the pools would still write the files while the directory is deleted
+        "connection.url", "jdbc:sqlite:file:" + directory.getFileName() + "?mode=memory&cache=shared",
+        "connection.username", "",
+        "connection.password", "",
+        // every read goes to the segment or to the database
+        "instruction-cache-size", "0"));
+    if (segments) {
+      values.put("segment-directory", directory.resolve("segments").toString());
+    }
+    return Config.builder(ConfigSources.create(values))
+        .disableEnvironmentVariablesSource()
+        .disableSystemPropertiesSource()
+        .build();
+  }
+
+  private static Database database(Path directory, boolean segments) {
+    var config = config(directory, segments);
+    return new Database(DbClient.create(config), config);
+  }
+
+  private static int index(Database db, Path directory) throws IOException {
+    var jar = new JarBuilder(directory, "Test");
+    jar.addFile("fr.uge.test.Test", SOURCE);
+    return CloneDetectors.indexArtefact(db, jar.get()).id();
+  }
+
+  private static void assertSameInstructions(InstructionColumns expected, InstructionColumns actual) {
+    assertEquals(expected.size(), actual.size());
+    for (var i = 0; i < expected.size(); i++) {
+      assertEquals(expected.hash(i), actual.hash(i));
+      assertEquals(expected.line(i), actual.line(i));
+      assertEquals(expected.fileId(i), actual.fileId(i));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    try (var storage = new FileStorage()) {
+      var db = database(storage.storageDir(), true);
+      var artefactId = index(db, storage.storageDir());
+      assertTrue(db.instructionTable().hasSegment(artefactId));
+
+      var fromDatabase = database(storage.storageDir(), false).instructionTable().getAll(artefactId);
+      assertNotEquals(0, fromDatabase.size());
+      assertSameInstructions(fromDatabase, db.instructionTable().getAll(artefactId));
+    }
+  }
+
+  @Test
+  public void testInvalidMagic() throws IOException {
+    try (var storage = new FileStorage()) {
+      var artefactId = index(database(storage.storageDir(), true), storage.storageDir());
+      var segment = storage.storageDir().resolve("segments").resolve(artefactId + ".seg");
+      var bytes = Files.readAllBytes(segment);
+      bytes[0] ^= 1;
+      Files.write(segment, bytes);
+
+      var fromDatabase = database(storage.storageDir(), false).instructionTable().getAll(artefactId);
+      assertSameInstructions(fromDatabase, database(storage.storageDir(), true).instructionTable().getAll(artefactId));
+    }
+  }
+
+  @Test
+  public void testTruncatedSegment() throws IOException {
+    try (var storage = new FileStorage()) {
+      var artefactId = index(database(storage.storageDir(), true), storage.storageDir());
+      var segment = storage.storageDir().resolve("segments").resolve(artefactId + ".seg");
+      var bytes = Files.readAllBytes(segment);
+      Files.write(segment, Arrays.copyOf(bytes, bytes.length - 1));
+
+      var fromDatabase = database(storage.storageDir(), false).instructionTable().getAll(artefactId);
+      assertSameInstructions(fromDatabase, database(storage.storageDir(), true).instructionTable().getAll(artefactId));
+    }
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    try (var storage = new FileStorage()) {
+      var db = database(storage.storageDir(), true);
+      var artefactId = index(db, storage.storageDir());
+      var segment = storage.storageDir().resolve("segments").resolve(artefactId + ".seg");
+      assertTrue(Files.exists(segment));
+
+      db.instructionTable().invalidate(artefactId);
+      assertFalse(Files.exists(segment));
+      assertFalse(db.instructionTable().hasSegment(artefactId));
+    }
+  }
+}
@@ -14,6 +14,8 @@ import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
 public class JarBuilder {
   private final Path directory;
@@ -40,18 +42,31 @@ public class JarBuilder {
   }
 
   public void addFile(String name, String content) throws IOException {
+    addFile(name, content, ZipEntry.DEFLATED);
+  }
+
+  public void addFile(String name, String content, int method) throws IOException {
     Objects.requireNonNull(name);
     Objects.requireNonNull(content);
     requireInConstruction();
 
     var path = compile(name, content);
     var file = replacePackage(name);
-    writeToJar(main, file + ".class", Files.readAllBytes(path));
-    writeToJar(source, file + ".java", content.getBytes());
+    writeToJar(main, file + ".class", Files.readAllBytes(path), method);
+    writeToJar(source, file + ".java", content.getBytes(), method);
   }
 
-  private static void writeToJar(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+  private static void writeToJar(JarOutputStream jar, String name, byte[] bytes, int method) throws IOException {
     var entry = new JarEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      // a stored entry is written with its size and checksum
+      var crc = new CRC32();
+      crc.update(bytes);
+      entry.setSize(bytes.length);
+      entry.setCompressedSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
     jar.putNextEntry(entry);
     jar.write(bytes);
     jar.closeEntry();